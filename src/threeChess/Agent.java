@@ -34,6 +34,7 @@ public abstract class Agent implements Runnable{
    * They respond with a move represented by a pair (two element array) of positions: 
    * the start and the end position of the move.
    * @param board The representation of the game state.
+   * In ThreeChess.play this is a read-only BoardView: clone it to try out moves.
    * @return a two element array of Position objects, where the first element is the 
    * current position of the piece to be moved, and the second element is the 
    * position to move that piece to.
@@ -49,10 +50,67 @@ public abstract class Agent implements Runnable{
    * Displays the final board position to the agent, 
    * if required for learning purposes. 
    * Other a default implementation may be given.
+   * Called once at the end of each game, after gameEnded, even if the agent played more than one colour.
    * @param finalBoard the end position of the board
    * **/
   public abstract void finalBoard(Board finalBoard);
 
+  /**
+   * Called at the start of each game the agent plays, before any moves are made,
+   * so agents can set up state that they keep up to date for the rest of the game.
+   * An agent playing more than one colour in a game is called once for each.
+   * The default implementation does nothing.
+   * @param colour the colour the agent is playing.
+   * @param board a read-only view of the initial board, including each player's time.
+   * **/
+  public void gameStarted(Colour colour, Board board){}
+
+  /**
+   * Called after every move in the game, by any player including this agent, in the order they are played.
+   * Agents can use this to update their own data structures incrementally, 
+   * rather than working out what has changed from the board given to playMove,
+   * and a pondering agent can use it to follow its opponents' moves.
+   * An agent playing more than one colour in a game is called once per move,
+   * and can compare the mover with the colours it was given in gameStarted.
+   * This is called on the game thread, so it must return quickly:
+   * the time it takes is charged to the agent's clock on its next turn.
+   * The default implementation does nothing.
+   * @param board a read-only view of the board after the move.
+   * @param mover the colour that made the move.
+   * @param start the start position of the move.
+   * @param end the end position of the move.
+   * **/
+  public void moveMade(Board board, Colour mover, Position start, Position end){}
+
+  /**
+   * Called at the end of each game the agent plays, before finalBoard.
+   * An agent playing more than one colour in a game is called once for each, with that colour's score.
+   * The default implementation does nothing.
+   * @param colour the colour the agent played.
+   * @param board a read-only view of the final board.
+   * @param score the agent's score: -2 for an illegal move, -1 for a loss, 0 for a draw and +1 for a win.
+   * **/
+  public void gameEnded(Colour colour, Board board, int score){}
+
+  /**
+   * Called after the agent has made its move, so that it can think on its opponents' time (pondering).
+   * An agent that ponders should search on its own thread, and return from this method immediately.
+   * Only the time an agent takes on its own turn is charged to its clock, 
+   * so on a multi-core machine pondering adds the opponents' thinking time to the agent's own.
+   * An agent playing more than one colour in a game is called for each of them.
+   * The default implementation does nothing.
+   * @param board a read-only view of the board after the agent's move.
+   * **/
+  public void startPondering(Board board){}
+
+  /**
+   * Called when it is the agent's turn again, just before playMove, and when the game ends.
+   * A pondering agent should stop searching, keeping any results it wants to use in playMove.
+   * The time taken by this call is charged to the agent's clock.
+   * The default implementation does nothing.
+   * **/
+  public void stopPondering(){}
+
   /**
    * For running threaded games.
    * **/
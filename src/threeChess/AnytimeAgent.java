@@ -0,0 +1,39 @@
+package threeChess;
+
+/**
+ * An agent that can be asked for a move at any time: rather than returning one move from playMove,
+ * it publishes its best move so far as its search goes on.
+ * <p>
+ * ThreeChess.play runs search on its own thread. In a timed game, if the search has not returned
+ * a little over 100 milliseconds before the agent's clock runs out, the runner takes the latest published move,
+ * and stops the search. So an agent need not time its own search, but a move must have been published by then:
+ * with none, or an illegal one, the agent forfeits as usual.
+ * <p>
+ * After the move is taken the runner waits up to 100 milliseconds for search to return before going on,
+ * charging the wait to the agent's clock, so a search must poll isStopped often, and return promptly once it is set.
+ * The deadline holds back this wait, so a search that returns within it does not run the agent's clock out.
+ * An agent whose search has still not returned when its next turn comes forfeits, as for an illegal move,
+ * rather than having two searches running at once.
+ * **/
+public abstract class AnytimeAgent extends Agent{
+
+  /**
+   * Searches for a move, publishing the best so far whenever it changes, until the search is complete
+   * or the move is stopped.
+   * @param board a read-only view of the game state.
+   * @param move the handle to publish moves to, and to poll for being stopped.
+   * **/
+  public abstract void search(Board board, AnytimeMove move);
+
+  /**
+   * Plays a move by searching to completion on the calling thread, for runners that do not support anytime agents.
+   * @param board the representation of the game state.
+   * @return the last move published by search, or null if there was none.
+   * **/
+  public Position[] playMove(Board board){
+    AnytimeMove move = new AnytimeMove();
+    search(board, move);
+    move.finish();
+    return move.get();
+  }
+}
@@ -0,0 +1,64 @@
+package threeChess;
+
+/**
+ * The move an AnytimeAgent is searching for, shared between the agent's search thread and the runner.
+ * The agent publishes its best move so far whenever it changes, and polls isStopped;
+ * the runner takes the latest published move when the search finishes or the deadline comes, whichever is first.
+ * All methods are thread safe.
+ * **/
+public class AnytimeMove{
+
+  private volatile Position[] best;
+  private volatile boolean stopped;
+  private boolean done;
+
+  /**
+   * Publishes the agent's best move so far, replacing any published before.
+   * @param start the start position of the move.
+   * @param end the end position of the move.
+   * **/
+  public void publish(Position start, Position end){
+    best = new Position[]{start, end};
+  }
+
+  /**@return the latest published move, or null if none has been published**/
+  public Position[] get(){return best;}
+
+  /**@return whether the runner has taken the move, so the search should return as soon as it can**/
+  public boolean isStopped(){return stopped;}
+
+  /**Asks the search to stop, for example because the deadline has come.**/
+  public void stop(){stopped = true;}
+
+  /**Marks the latest published move as final, and wakes the runner. Called when the search returns.**/
+  public synchronized void finish(){
+    done = true;
+    notifyAll();
+  }
+
+  /**@return whether the search has finished**/
+  public synchronized boolean isDone(){return done;}
+
+  /**
+   * Waits for the search to finish.
+   * @return the latest published move, or null.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   * **/
+  public synchronized Position[] await() throws InterruptedException{
+    while(!done) wait();
+    return best;
+  }
+
+  /**
+   * Waits for the search to finish, or the deadline to pass.
+   * @param deadline the deadline, on the System.nanoTime() clock.
+   * @return the latest published move, or null.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   * **/
+  public synchronized Position[] await(long deadline) throws InterruptedException{
+    long remaining;
+    while(!done && (remaining = deadline-System.nanoTime())>0)
+      wait(remaining/1_000_000L, (int) (remaining%1_000_000L));
+    return best;
+  }
+}
@@ -0,0 +1,172 @@
+package threeChess;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A PrintStream for game logs that hands its output to a background writer thread,
+ * so the game loop never waits on the disk.
+ * Lines are passed through a bounded lock-free queue and written out in batches.
+ * If the queue is full, the printing thread waits until the writer catches up (back-pressure).
+ * The writer sleeps while there is nothing to write, and is woken by the next entry.
+ * Calling flush() blocks until everything printed so far has been written and flushed,
+ * and close() flushes, stops the writer and closes the underlying stream.
+ * **/
+public class AsyncLogStream extends PrintStream{
+
+  /**The default number of queued entries before printing threads are held back**/
+  public static final int DEFAULT_CAPACITY = 8192;
+  /**The maximum number of entries written between checks for a flush request**/
+  private static final int BATCH = 256;
+  /**Entries waiting to be written, either Strings or byte arrays**/
+  private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+  /**Free places in the queue, reserved before an entry is added and released once it is written**/
+  private final Semaphore slots;
+  /**The number of entries submitted so far**/
+  private final AtomicLong submitted = new AtomicLong();
+  /**The number of entries that have been written and flushed to the sink**/
+  private volatile long flushed = 0;
+  /**The number of entries that must be flushed to satisfy pending flush() calls**/
+  private final AtomicLong flushTarget = new AtomicLong();
+  private volatile boolean closed = false;
+  /**Whether a write has failed, kept here as PrintStream.checkError calls flush()**/
+  private volatile boolean failed = false;
+  /**Whether the writer is, or is about to be, parked waiting for entries**/
+  private volatile boolean idle = false;
+  private final OutputStream sink;
+  private final Charset charset;
+  private final Thread writer;
+
+  /**
+   * Creates an asynchronous log writing to the given stream.
+   * @param sink the stream to write to. It is closed when this log is closed.
+   * @param capacity the maximum number of queued entries before printing blocks, at least 1.
+   * @throws IllegalArgumentException if the capacity is less than 1.
+   * **/
+  public AsyncLogStream(OutputStream sink, int capacity){
+    super(new OutputStream(){public void write(int b){}}, false);
+    if(capacity<1) throw new IllegalArgumentException("Capacity must be at least 1: "+capacity);
+    this.sink = sink instanceof BufferedOutputStream? sink: new BufferedOutputStream(sink, 1<<16);
+    this.slots = new Semaphore(capacity);
+    this.charset = Charset.defaultCharset();
+    this.out = new OutputStream(){//PrintStream routes print(int), printf etc. through this stream
+      public void write(int b){enqueue(new byte[]{(byte) b});}
+      public void write(byte[] b, int off, int len){if(len>0) enqueue(java.util.Arrays.copyOfRange(b, off, off+len));}
+    };
+    writer = new Thread(this::drain, "AsyncLogStream writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Creates an asynchronous log writing to a file.
+   * @param file the file to write the log to.
+   * @param gzip whether the log should be gzip compressed.
+   * @throws IOException if the file cannot be opened.
+   * **/
+  public AsyncLogStream(File file, boolean gzip) throws IOException{
+    this(gzip? new GZIPOutputStream(new FileOutputStream(file), 1<<16, true): new FileOutputStream(file), DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Queues an entry for the writer, waiting while the queue is full.
+   * @param entry a String or byte array to be written.
+   * **/
+  private void enqueue(Object entry){
+    if(closed){setError(); return;}
+    slots.acquireUninterruptibly();//back-pressure: wait for the writer to catch up
+    queue.offer(entry);
+    submitted.incrementAndGet();
+    if(idle) LockSupport.unpark(writer);
+  }
+
+  /**The writer thread's loop, writing queued entries in batches until closed.**/
+  private void drain(){
+    long written = 0;
+    while(true){
+      int n = 0;
+      Object entry;
+      while(n<BATCH && (entry = queue.poll())!=null){
+        try{
+          if(entry instanceof String) sink.write(((String) entry).getBytes(charset));
+          else sink.write((byte[]) entry);
+        }catch(IOException e){setError();}//a failed entry is still counted, so flush() and back-pressure never wait on it
+        n++;
+      }
+      if(n>0){
+        slots.release(n);
+        written+=n;
+      }
+      if(n<BATCH){//queue drained
+        if(flushTarget.get()>flushed){
+          try{sink.flush();}catch(IOException e){setError();}
+          flushed = written;
+        }
+        else if(closed && queue.isEmpty()) return;
+        else{//sleep until an entry, flush or close wakes us. idle is set before the queue is checked
+          idle = true;//and read after an entry is queued, so one side always sees the other
+          if(queue.isEmpty() && flushTarget.get()<=flushed && !closed) LockSupport.park(this);
+          idle = false;
+        }
+      }
+    }
+  }
+
+  /**Records that a write has failed, so flush() stops waiting and checkError() returns true.**/
+  protected void setError(){
+    failed = true;
+    super.setError();
+  }
+
+  /**Prints a string without a line terminator.**/
+  public void print(String s){
+    enqueue(String.valueOf(s));
+  }
+
+  /**Prints a string followed by a line terminator.**/
+  public void println(String s){
+    enqueue(s+System.lineSeparator());
+  }
+
+  /**Prints an object's string representation followed by a line terminator.**/
+  public void println(Object o){
+    println(String.valueOf(o));
+  }
+
+  /**Prints a line terminator.**/
+  public void println(){
+    enqueue(System.lineSeparator());
+  }
+
+  /**
+   * Blocks until everything printed before this call has been written and flushed,
+   * or until a write has failed, which checkError() then reports.
+   * **/
+  public void flush(){
+    long target = submitted.get();
+    flushTarget.accumulateAndGet(target, Math::max);//never lowered by a concurrent flush with an earlier target
+    while(flushed<target && writer.isAlive() && !failed){//after a write error, checkError reports it rather than waiting
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(100_000L);
+    }
+  }
+
+  /**
+   * Flushes the log, stops the writer thread and closes the underlying stream.
+   * **/
+  public void close(){
+    if(closed) return;
+    flush();
+    closed = true;
+    LockSupport.unpark(writer);
+    try{writer.join();}
+    catch(InterruptedException e){Thread.currentThread().interrupt();}
+    try{sink.close();}catch(IOException e){setError();}
+  }
+}
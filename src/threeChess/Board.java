@@ -1,6 +1,7 @@
 package threeChess;
 
-import java.io.Serializable;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -9,49 +10,180 @@ import java.util.*;
  * or null is free. It also records previous moves, 
  * as well as whose move it is, and which pieces have been 
  * captured by which player.
+ * Read-only views of a board can be taken cheaply with view(): 
+ * the board and its views share state until the board is next changed.
+ * Boards are serialized in the compact form given by BoardCodec.
  * **/
 public class Board implements Cloneable, Serializable {
   
   /** Serial version UID for Board serialization and storage**/
-  private static final long serialVersionUID = -8547775276050612530L;
-  /** A map from board positions to the pieces at that position **/
-  private HashMap<Position,Piece> board;
+  private static final long serialVersionUID = 2L;//changed when the serialized form changed to BoardCodec
+  /** The piece at each board position, indexed by ordinal, or null if vacant **/
+  private transient Piece[] squares;
   /**A flag that is true if and only if a King has been captured**/
-  private boolean gameOver = false;
+  private transient boolean gameOver = false;
   /**The player whose turn it is**/
-  private Colour turn = Colour.BLUE;//Blue goes first
-  /**The moves taken so far, represented as an array of two positions, the start and end of the move**/
-  private ArrayList<Position[]> history;//can only be changed by taking moves
-  /**A map indicating which player has taken which piece, to support alternative scoring methods**/
-  private HashMap<Colour,ArrayList<Piece>> captured;
-  /**A Map representing the remaining time allowed for each player, in milliseconds**/
-  private HashMap<Colour,Integer> timeLeft;
+  private transient Colour turn = Colour.BLUE;//Blue goes first
+  /**The moves taken so far, packed by Moves.pack, and shared with copies of the board**/
+  private transient MoveHistory history;//can only be changed by taking moves
+  /**The pieces taken by each player, indexed by colour ordinal, to support alternative scoring methods**/
+  private transient ArrayList<Piece>[] captured;
+  /**The remaining time allowed for each player, indexed by colour ordinal, in milliseconds**/
+  private transient int[] timeLeft;
+  /**True if the arrays of this board are shared with a view, and must be copied before they are changed**/
+  private transient boolean shared;
+  /**The Zobrist hash of the pieces and turn, updated as moves are made**/
+  private transient long hash;
+  /**The hashes of the position with its colours rotated by one and two places, see Symmetry**/
+  private transient long hash1, hash2;
 
   /**
-   * Initialises the board, placing all pieces at their initial position.
-   * Note, unlike two person chess, the Queen is always on the left, and the King is always on his own colour.
-   * @param time the number of milliseconds each player has in total for the entire game.
+   * The pieces in their initial positions, indexed by ordinal.
+   * Pieces are immutable, so every new or reset board starts with these same piece objects.
    * **/
-  public Board(int time){
-    board = new HashMap<Position,Piece>();
+  private static final Piece[] INITIAL = new Piece[96];
+  /**The hashes of the initial position, and its rotations**/
+  private static final long INITIAL_HASH, INITIAL_HASH1, INITIAL_HASH2;
+
+  static{
     try{
       for(Colour c: Colour.values()){
-        board.put(Position.get(c,0,0),new Piece(PieceType.ROOK,c)); board.put(Position.get(c,0,7), new Piece(PieceType.ROOK,c));
-        board.put(Position.get(c,0,1),new Piece(PieceType.KNIGHT,c)); board.put(Position.get(c,0,6), new Piece(PieceType.KNIGHT,c));
-        board.put(Position.get(c,0,2),new Piece(PieceType.BISHOP,c)); board.put(Position.get(c,0,5), new Piece(PieceType.BISHOP,c));
-        board.put(Position.get(c,0,3),new Piece(PieceType.QUEEN,c)); board.put(Position.get(c,0,4), new Piece(PieceType.KING,c));
+        initial(Position.get(c,0,0),PieceType.ROOK,c); initial(Position.get(c,0,7),PieceType.ROOK,c);
+        initial(Position.get(c,0,1),PieceType.KNIGHT,c); initial(Position.get(c,0,6),PieceType.KNIGHT,c);
+        initial(Position.get(c,0,2),PieceType.BISHOP,c); initial(Position.get(c,0,5),PieceType.BISHOP,c);
+        initial(Position.get(c,0,3),PieceType.QUEEN,c); initial(Position.get(c,0,4),PieceType.KING,c);
         for(int i = 0; i<8; i++){
-          board.put(Position.get(c,1,i), new Piece(PieceType.PAWN,c));
+          initial(Position.get(c,1,i),PieceType.PAWN,c);
         }
       }
     }catch(ImpossiblePositionException e){}//no impossible positions in this code
-    history = new ArrayList<Position[]>();
-    captured = new HashMap<Colour,ArrayList<Piece>>();
-    timeLeft = new HashMap<Colour,Integer>();
-    for(Colour c: Colour.values()){
-      captured.put(c,new ArrayList<>());
-      timeLeft.put(c,time);
+    long[] h = new long[3];
+    for(int r = 0; r<3; r++){
+      h[r] = Zobrist.turn(Colour.BLUE, r);
+      for(Position p: Position.values()) h[r]^=Zobrist.piece(INITIAL[p.ordinal()],p,r);
+    }
+    INITIAL_HASH = h[0]; INITIAL_HASH1 = h[1]; INITIAL_HASH2 = h[2];
+  }
+
+  /**Places a piece in the initial position**/
+  private static void initial(Position position, PieceType type, Colour colour){
+    INITIAL[position.ordinal()] = new Piece(type,colour);
+  }
+
+  /**
+   * Initialises the board, placing all pieces at their initial position.
+   * Note, unlike two person chess, the Queen is always on the left, and the King is always on his own colour.
+   * @param time the number of milliseconds each player has in total for the entire game.
+   * **/
+  public Board(int time){
+    squares = INITIAL.clone();
+    history = new MoveHistory();
+    captured = newCaptured();
+    timeLeft = new int[]{time,time,time};
+    hash = INITIAL_HASH; hash1 = INITIAL_HASH1; hash2 = INITIAL_HASH2;
+  }
+
+  /**
+   * Creates a board sharing the state of another board, for views.
+   * The source board is marked as shared, so it copies its state before it is next changed.
+   * @param source the board to share state with.
+   * **/
+  Board(Board source){
+    squares = source.squares;
+    gameOver = source.gameOver;
+    turn = source.turn;
+    history = source.history.fork();
+    captured = source.captured;
+    timeLeft = source.timeLeft;
+    hash = source.hash; hash1 = source.hash1; hash2 = source.hash2;
+    source.shared = true;
+  }
+
+  /**@return an array of three empty lists of captured pieces**/
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ArrayList<Piece>[] newCaptured(){
+    return new ArrayList[]{new ArrayList<Piece>(), new ArrayList<Piece>(), new ArrayList<Piece>()};
+  }
+
+  /**@return the piece at a position, or null**/
+  private Piece get(Position position){
+    return squares[position.ordinal()];
+  }
+
+  /**Places a piece at a position, or clears the position if the piece is null**/
+  private void put(Position position, Piece piece){
+    squares[position.ordinal()] = piece;
+  }
+
+  /**
+   * Called before the board's state is changed.
+   * If the state is shared with views, the board takes its own copy, leaving the views unchanged.
+   * The move history does not need to be copied, as views have their own fork of it.
+   * **/
+  void beforeChange(){
+    if(shared){
+      squares = squares.clone();
+      timeLeft = timeLeft.clone();
+      captured = copyCaptured(captured);
+      shared = false;
+    }
+  }
+
+  /**@return a copy of the lists of captured pieces**/
+  private static ArrayList<Piece>[] copyCaptured(ArrayList<Piece>[] captured){
+    ArrayList<Piece>[] copy = newCaptured();
+    for(int c = 0; c<3; c++) copy[c].addAll(captured[c]);
+    return copy;
+  }
+
+  /**
+   * Returns the board to the start of a new game, with all pieces in their initial positions,
+   * no moves made or pieces captured, and the given time for each player.
+   * The board's arrays are reused, unless they are shared with a view, 
+   * so games can be played repeatedly on one board without creating garbage.
+   * @param time the number of milliseconds each player has in total for the entire game.
+   * **/
+  public void reset(int time){
+    beforeChange();
+    System.arraycopy(INITIAL, 0, squares, 0, squares.length);
+    for(ArrayList<Piece> taken: captured) taken.clear();
+    Arrays.fill(timeLeft, time);
+    history = new MoveHistory();
+    turn = Colour.BLUE;
+    gameOver = false;
+    hash = INITIAL_HASH; hash1 = INITIAL_HASH1; hash2 = INITIAL_HASH2;
+  }
+
+  /**
+   * Sets this board to the same state as another board, 
+   * reusing this board's arrays where possible, rather than creating a new clone.
+   * The move history is shared with the source, as it is for clones.
+   * @param source the board to copy.
+   * **/
+  public void copyFrom(Board source){
+    if(source==this) return;//clearing the captured lists would empty the source too
+    beforeChange();
+    System.arraycopy(source.squares, 0, squares, 0, squares.length);
+    for(int c = 0; c<3; c++){
+      captured[c].clear();
+      captured[c].addAll(source.captured[c]);
     }
+    System.arraycopy(source.timeLeft, 0, timeLeft, 0, timeLeft.length);
+    history = source.history.fork();
+    turn = source.turn;
+    gameOver = source.gameOver;
+    hash = source.hash; hash1 = source.hash1; hash2 = source.hash2;
+  }
+
+  /**
+   * Returns a read-only view of the board as it is now.
+   * Taking a view does not copy anything: the view shares the board's state,
+   * and the board copies its state the next time it is changed, so the view never changes.
+   * This is how agents are given the board in ThreeChess.play.
+   * @return an immutable view of the current state of the board.
+   * **/
+  public BoardView view(){
+    return new BoardView(this);
   }
 
   /** @return whether in manual mode, the legal moves should be displayed on the board. **/
@@ -69,7 +201,7 @@ public class Board implements Cloneable, Serializable {
   public Set<Position> getPositions(Colour player){
     HashSet<Position> positions = new HashSet<Position>();
     for(Position p : Position.values()){
-      if(board.containsKey(p) && board.get(p).getColour()==player)
+      if(get(p)!=null && get(p).getColour()==player)
         positions.add(p);
     }
     return positions;
@@ -77,16 +209,17 @@ public class Board implements Cloneable, Serializable {
 
   /** @return a set of all the pieces captured by {@param player}. **/
   public List<Piece> getCaptured(Colour player) {
-    return new ArrayList<>(captured.get(player));
+    return new ArrayList<>(captured[player.ordinal()]);
   }
 
   /**
    * Gets the piece at a specified position.
+   * This is a cheap array lookup.
    * @param position the position of the piece,
    * @return the piece at that position or null, if the position is vacant.
    * **/
   public Piece getPiece(Position position){
-    return board.get(position);
+    return get(position);
   }
   
   /**
@@ -186,7 +319,7 @@ public class Board implements Cloneable, Serializable {
                 ((target==null && i==0) // 1 step forward, not taking
                  || (target==null && i==1 // 2 steps forward, 
                    && start.getColour()==mCol && start.getRow()==1 //must be in initial position
-                   && board.get(Position.get(mCol,2,start.getColumn()))==null)//and can't jump a piece 
+                   && get(Position.get(mCol,2,start.getColumn()))==null)//and can't jump a piece 
                  || (target!=null && i>1)//or taking diagonally
                 )
               )
@@ -213,18 +346,18 @@ public class Board implements Cloneable, Serializable {
         try{
           if(start==Position.get(mCol,0,4)){
             if(end==Position.get(mCol,0,6)){
-              Piece castle = board.get(Position.get(mCol,0,7));
-              Piece empty1 = board.get(Position.get(mCol,0,5));
-              Piece empty2 = board.get(Position.get(mCol,0,6));
+              Piece castle = get(Position.get(mCol,0,7));
+              Piece empty1 = get(Position.get(mCol,0,5));
+              Piece empty2 = get(Position.get(mCol,0,6));
               if(castle!=null && castle.getType()==PieceType.ROOK && castle.getColour()==mover.getColour()
                   && empty1==null && empty2==null)
                 return true;
             }
             if(end==Position.get(mCol,0,2)){
-              Piece castle = board.get(Position.get(mCol,0,0));
-              Piece empty1 = board.get(Position.get(mCol,0,1));
-              Piece empty2 = board.get(Position.get(mCol,0,2));
-              Piece empty3 = board.get(Position.get(mCol,0,3));
+              Piece castle = get(Position.get(mCol,0,0));
+              Piece empty1 = get(Position.get(mCol,0,1));
+              Piece empty2 = get(Position.get(mCol,0,2));
+              Piece empty3 = get(Position.get(mCol,0,3));
               if(castle!=null && castle.getType()==PieceType.ROOK && castle.getColour()==mover.getColour()
                   && empty1==null && empty2==null && empty3==null)
                 return true;
@@ -237,7 +370,7 @@ public class Board implements Cloneable, Serializable {
           Direction[] step = steps[i];
           try{
             Position tmp = step(mover,step,start);
-            while(end != tmp && board.get(tmp)==null){
+            while(end != tmp && get(tmp)==null){
               tmp = step(mover, step, tmp, tmp.getColour()!=start.getColour());
             }
             if(end==tmp) return true;
@@ -260,32 +393,41 @@ public class Board implements Cloneable, Serializable {
    * **/ 
   public void move(Position start, Position end, int time) throws ImpossiblePositionException{
     if(isLegalMove(start,end)){
-      Piece mover = board.get(start);
-      Piece taken = board.get(end);
-      timeLeft.put(mover.getColour(),timeLeft.get(mover.getColour())-time);
-      if(timeLeft.get(mover.getColour())<0) gameOver=true;
+      beforeChange();
+      Piece mover = get(start);
+      Piece taken = get(end);
+      timeLeft[mover.getColour().ordinal()]-=time;
+      if(timeLeft[mover.getColour().ordinal()]<0) gameOver=true;
       else{
-        board.remove(start);//empty start square
+        put(start,null);//empty start square
+        toggle(mover,start); toggle(taken,end);
         if(mover.getType()==PieceType.PAWN && end.getRow()==0 && end.getColour()!=mover.getColour())
-          board.put(end, new Piece(PieceType.QUEEN, mover.getColour()));//promote pawn if back rank
-        else board.put(end,mover);//move piece
+          put(end, new Piece(PieceType.QUEEN, mover.getColour()));//promote pawn if back rank
+        else put(end,mover);//move piece
+        toggle(get(end),end);
         if(mover.getType()==PieceType.KING && start.getColumn()==4 && start.getRow()==0){
           if(end.getColumn()==2){//castle left, update rook
             Position rookPos = Position.get(mover.getColour(),0,0);
-            board.put(Position.get(mover.getColour(),0,3),board.get(rookPos));
-            board.remove(rookPos);
+            Position rookEnd = Position.get(mover.getColour(),0,3);
+            toggle(get(rookEnd),rookEnd); toggle(get(rookPos),rookPos); toggle(get(rookPos),rookEnd);
+            put(rookEnd,get(rookPos));
+            put(rookPos,null);
           }else if(end.getColumn()==6){//castle right, update rook
             Position rookPos = Position.get(mover.getColour(),0,7);
-            board.put(Position.get(mover.getColour(),0,5),board.get(rookPos));
-            board.remove(rookPos);
+            Position rookEnd = Position.get(mover.getColour(),0,5);
+            toggle(get(rookEnd),rookEnd); toggle(get(rookPos),rookPos); toggle(get(rookPos),rookEnd);
+            put(rookEnd,get(rookPos));
+            put(rookPos,null);
          }
         }
-        history.add(new Position[]{start,end});
+        history.add(Moves.pack(start,end));
         if(taken !=null){
-          captured.get(mover.getColour()).add(taken);
+          captured[mover.getColour().ordinal()].add(taken);
           if(taken.getType()==PieceType.KING) gameOver=true;
         }
+        toggleTurn(turn);
         turn = Colour.values()[(turn.ordinal()+1)%3];
+        toggleTurn(turn);
       }
     }
     else throw new ImpossiblePositionException("Illegal Move: "+start+"-"+end);
@@ -313,6 +455,46 @@ public class Board implements Cloneable, Serializable {
     return turn;
   }
 
+  /**
+   * Returns a 64 bit Zobrist hash of the position: the pieces on each square and whose turn it is.
+   * Equal positions have equal hashes, regardless of how they were reached.
+   * The hash is maintained as moves are made, so this is very cheap.
+   * @return the hash of the current position.
+   * **/
+  public long getHashKey(){
+    return hash;
+  }
+
+  /**
+   * Returns a hash of the position that is the same for all three rotations of the position between the colours.
+   * It is the hash of the rotation of the position in which Blue is to move, see Symmetry.
+   * Tables keyed by this hash store one entry for the three equivalent positions;
+   * Symmetry.canonicalRotation gives the rotation to map moves and results to and from the table.
+   * @return the symmetric hash of the current position.
+   * **/
+  public long getCanonicalKey(){
+    switch(turn){
+      case BLUE: return hash;
+      case GREEN: return hash2;//rotating two places takes green to blue
+      default: return hash1;
+    }
+  }
+
+  /**Adds or removes a piece from the hashes of the position and its rotations**/
+  private void toggle(Piece piece, Position position){
+    if(piece==null) return;
+    hash^=Zobrist.piece(piece,position);
+    hash1^=Zobrist.piece(piece,position,1);
+    hash2^=Zobrist.piece(piece,position,2);
+  }
+
+  /**Adds or removes the player to move from the hashes of the position and its rotations**/
+  private void toggleTurn(Colour colour){
+    hash^=Zobrist.turn(colour);
+    hash1^=Zobrist.turn(colour,1);
+    hash2^=Zobrist.turn(colour,2);
+  }
+
   /**
    * Returns the number of moves made so far.
    * @return the number of moves made in the game.
@@ -329,7 +511,21 @@ public class Board implements Cloneable, Serializable {
    * **/
   public Position[] getMove(int index){
     if(0<=index && index<getMoveCount()){
-      return history.get(index).clone();
+      return Moves.unpack(history.get(index));
+    }
+    else throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
+  }
+
+  /**
+   * returns the move made at the corresponding index (starting from 0), packed into an int by Moves.pack.
+   * This avoids creating an array for every move read.
+   * @param index the index of the move
+   * @return the move, packed by Moves.pack
+   * @throws ArrayIndexOutOfBoundsException if the index does not correspond to a move.
+   * **/
+  public int getPackedMove(int index){
+    if(0<=index && index<getMoveCount()){
+      return history.get(index);
     }
     else throw new ArrayIndexOutOfBoundsException("Index out of bounds.");
   }
@@ -347,10 +543,10 @@ public class Board implements Cloneable, Serializable {
   public int score(Colour player){
     int score = 0;
     for(Position p: Position.values()){
-      Piece piece = board.get(p);
+      Piece piece = get(p);
       if(piece!=null && piece.getColour()==player) score+=piece.getValue();
     }
-    for(Piece piece: captured.get(player)) score+=piece.getValue();  
+    for(Piece piece: captured[player.ordinal()]) score+=piece.getValue();  
     return score;
   }
 
@@ -369,10 +565,10 @@ public class Board implements Cloneable, Serializable {
   public Colour getWinner(){
     if(gameOver){
       for(Colour c: Colour.values()){
-        for(Piece taken: captured.get(c)){
+        for(Piece taken: captured[c.ordinal()]){
           if(taken.getType()==PieceType.KING) return c;
         }
-        if(timeLeft.get(c)<0){
+        if(timeLeft[c.ordinal()]<0){
           Colour winner = null; int max = Integer.MIN_VALUE;
           for(Colour d: Colour.values()){
             int score = score(d);
@@ -395,10 +591,10 @@ public class Board implements Cloneable, Serializable {
   public Colour getLoser(){
     if(gameOver){
       for(Colour c: Colour.values()){
-        for(Piece taken: captured.get(c)){
+        for(Piece taken: captured[c.ordinal()]){
           if(taken.getType()==PieceType.KING) return taken.getColour();
         }
-        if(timeLeft.get(c)<0) return c;
+        if(timeLeft[c.ordinal()]<0) return c;
       }
     }
     return null;
@@ -409,16 +605,77 @@ public class Board implements Cloneable, Serializable {
    * @return the time remaining, in milliseconds.
    * **/
   public int getTimeLeft(Colour colour){
-    return timeLeft.get(colour);
+    return timeLeft[colour.ordinal()];
   }
 
   /**
-   * Return a copy of map representing the current board state
+   * Return a copy of map representing the current board state.
+   * Agents that only need to look up pieces should use getPiece, which does not copy anything.
    *
    * @return The copy of the board position/piece state map
    */
   public HashMap<Position, Piece> getPositionPieceMap() {
-    return new HashMap<>(board);
+    HashMap<Position, Piece> map = new HashMap<>();
+    for(Position p: Position.values())
+      if(get(p)!=null) map.put(p, get(p));
+    return map;
+  }
+
+  /**
+   * Replaces the state of the board, for decoding boards.
+   * @param squares the piece on each position, indexed by ordinal, or null for empty positions.
+   * @param turn the player whose turn it is.
+   * @param gameOver whether the game has ended.
+   * @param times the time left for each player, indexed by colour ordinal.
+   * @param taken the pieces taken by each player, indexed by colour ordinal.
+   * @param moves the moves made so far.
+   * **/
+  void restore(Piece[] squares, Colour turn, boolean gameOver, int[] times, List<List<Piece>> taken, List<Position[]> moves){
+    beforeChange();
+    this.squares = squares.clone();
+    this.turn = turn;
+    this.gameOver = gameOver;
+    history = new MoveHistory();
+    for(Position[] move: moves) history.add(Moves.pack(move));
+    captured = newCaptured();
+    for(int c = 0; c<3; c++) captured[c].addAll(taken.get(c));
+    timeLeft = times.clone();
+    hash = Zobrist.hash(this); hash1 = Zobrist.hash(this,1); hash2 = Zobrist.hash(this,2);
+  }
+
+  /**@return the list of pieces captured by a player, without copying it**/
+  List<Piece> capturedBy(Colour player){
+    return captured[player.ordinal()];
+  }
+
+  /** Writes the board in the compact form given by BoardCodec, including the move history. **/
+  private void writeObject(ObjectOutputStream out) throws IOException{
+    out.defaultWriteObject();
+    ByteBuffer buffer = ByteBuffer.allocate(BoardCodec.encodedSize(this, true));
+    BoardCodec.encode(this, buffer, true);
+    out.writeInt(buffer.position());
+    out.write(buffer.array(), 0, buffer.position());
+  }
+
+  /** Reads a board written by writeObject. **/
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+    in.defaultReadObject();
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    BoardCodec.decode(ByteBuffer.wrap(bytes), this);
+  }
+
+  /**
+   * Replaces the board's references to shared state with copies,
+   * so that it can be changed independently of the board it was copied from.
+   * The move history is forked, so the copy shares all the moves made so far.
+   * **/
+  void copyState(){
+    squares = squares.clone();
+    history = history.fork();
+    captured = copyCaptured(captured);
+    timeLeft = timeLeft.clone();
+    shared = false;
   }
 
   /**
@@ -428,12 +685,7 @@ public class Board implements Cloneable, Serializable {
    * **/ 
   public Object clone() throws CloneNotSupportedException{
     Board clone = (Board) super.clone();
-    clone.board = (HashMap<Position,Piece>)board.clone();
-    clone.history = new ArrayList<Position[]>();
-    for(Position[] move: history) clone.history.add(move.clone());
-    clone.timeLeft = (HashMap<Colour,Integer>) timeLeft.clone();
-    clone.captured = new HashMap<Colour,ArrayList<Piece>>();
-    for(Colour c: Colour.values()) clone.captured.put(c, (ArrayList<Piece>) captured.get(c).clone());
+    clone.copyState();
     return clone;
   }
 }
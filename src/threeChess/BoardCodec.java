@@ -0,0 +1,153 @@
+package threeChess;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A compact binary encoding of boards, for storing positions and sending them between processes.
+ * Boards are written directly into a ByteBuffer, which may be a direct or memory mapped buffer,
+ * without building any intermediate objects. The encoding is
+ * <pre>
+ * 96 bytes the piece code of each position, in ordinal order, 0 if empty
+ * byte     the turn in bits 0-1, bit 2 set if the game is over, bit 3 set if the history is included
+ * 3 x int  the time left for blue, green and red, in milliseconds
+ * 3 x      the pieces captured by blue, green and red: a count byte followed by a piece code for each
+ * int      the number of moves, if the history is included
+ * 2 bytes  per move, the start and end ordinals, if the history is included
+ * </pre>
+ * A piece code is 1 + 6*colour + type, using the ordinals of Colour and PieceType.
+ * The opening position without history takes 112 bytes.
+ * **/
+public final class BoardCodec{
+
+  /**The number of bytes used for the squares**/
+  public static final int SQUARES = 96;
+  private static final Position[] POSITIONS = Position.values();
+  private static final Colour[] COLOURS = Colour.values();
+  private static final PieceType[] TYPES = PieceType.values();
+
+  private BoardCodec(){}
+
+  /**@return the code of a piece: 1 + 6*colour + type, or 0 for null**/
+  public static int code(Piece piece){
+    return piece==null?0:code(piece.getColour(), piece.getType());
+  }
+
+  /**@return the code of a piece of the given colour and type**/
+  public static int code(Colour colour, PieceType type){
+    return 1+6*colour.ordinal()+type.ordinal();
+  }
+
+  /**@return a new piece with the given code, or null for 0**/
+  public static Piece piece(int code){
+    return code==0?null:new Piece(TYPES[(code-1)%6], COLOURS[(code-1)/6]);
+  }
+
+  /**
+   * @param board the board to be encoded.
+   * @param history whether the move history will be included.
+   * @return the number of bytes needed to encode the board.
+   * **/
+  public static int encodedSize(Board board, boolean history){
+    int size = SQUARES+1+12+3;
+    for(Colour c: COLOURS) size+=board.capturedBy(c).size();
+    if(history) size+=4+2*board.getMoveCount();
+    return size;
+  }
+
+  /**
+   * Writes a board at the buffer's position, advancing the position.
+   * @param board the board to encode.
+   * @param buffer the buffer to write to.
+   * @param history whether to include the move history.
+   * @throws BufferOverflowException if the buffer does not have encodedSize bytes remaining.
+   * **/
+  public static void encode(Board board, ByteBuffer buffer, boolean history){
+    if(buffer.remaining()<encodedSize(board, history)) throw new BufferOverflowException();
+    for(Position p: POSITIONS) buffer.put((byte) code(board.getPiece(p)));
+    buffer.put((byte) (board.getTurn().ordinal() | (board.gameOver()?4:0) | (history?8:0)));
+    for(Colour c: COLOURS) buffer.putInt(board.getTimeLeft(c));
+    for(Colour c: COLOURS){
+      List<Piece> taken = board.capturedBy(c);
+      buffer.put((byte) taken.size());
+      for(Piece piece: taken) buffer.put((byte) code(piece));
+    }
+    if(history){
+      int count = board.getMoveCount();
+      buffer.putInt(count);
+      for(int i = 0; i<count; i++) buffer.putShort((short) board.getPackedMove(i));
+    }
+  }
+
+  /**
+   * Encodes a board into a new array.
+   * @param board the board to encode.
+   * @param history whether to include the move history.
+   * @return the encoded board.
+   * **/
+  public static byte[] encode(Board board, boolean history){
+    ByteBuffer buffer = ByteBuffer.allocate(encodedSize(board, history));
+    encode(board, buffer, history);
+    return buffer.array();
+  }
+
+  /**
+   * Reads a board from the buffer's position, advancing the position.
+   * @param buffer the buffer to read from.
+   * @return the decoded board.
+   * @throws IllegalArgumentException if the buffer does not contain a valid encoding.
+   * **/
+  public static Board decode(ByteBuffer buffer){
+    Board board = new Board(0);
+    decode(buffer, board);
+    return board;
+  }
+
+  /**
+   * Reads a board from the buffer's position into an existing board, replacing its state.
+   * @param buffer the buffer to read from.
+   * @param board the board to overwrite.
+   * @throws IllegalArgumentException if the buffer does not contain a valid encoding.
+   * **/
+  public static void decode(ByteBuffer buffer, Board board){
+    try{
+      Piece[] squares = new Piece[SQUARES];
+      for(int i = 0; i<SQUARES; i++) squares[i] = piece(checkCode(buffer.get()));
+      int flags = buffer.get();
+      if((flags & 3)==3) throw new IllegalArgumentException("Invalid turn");
+      int[] times = new int[3];
+      for(int c = 0; c<3; c++) times[c] = buffer.getInt();
+      List<List<Piece>> taken = new ArrayList<>(3);
+      for(int c = 0; c<3; c++){
+        int count = buffer.get() & 0xFF;
+        List<Piece> pieces = new ArrayList<>(count);
+        for(int i = 0; i<count; i++) pieces.add(piece(checkCode(buffer.get())));
+        taken.add(pieces);
+      }
+      List<Position[]> moves = Collections.emptyList();
+      if((flags & 8)!=0){
+        int count = buffer.getInt();
+        if(count<0 || 2L*count>buffer.remaining()) throw new IllegalArgumentException("Invalid move count");
+        moves = new ArrayList<>(count);
+        for(int i = 0; i<count; i++) moves.add(new Position[]{position(buffer.get()), position(buffer.get())});
+      }
+      board.restore(squares, COLOURS[flags & 3], (flags & 4)!=0, times, taken, moves);
+    }catch(BufferUnderflowException e){
+      throw new IllegalArgumentException("Truncated board encoding", e);
+    }
+  }
+
+  /**@return the code if it is valid**/
+  private static int checkCode(byte code){
+    if(code<0 || code>18) throw new IllegalArgumentException("Invalid piece code "+code);
+    return code;
+  }
+
+  /**@return the position with the given ordinal**/
+  private static Position position(byte ordinal){
+    if(ordinal<0 || ordinal>=SQUARES) throw new IllegalArgumentException("Invalid position "+ordinal);
+    return POSITIONS[ordinal];
+  }
+}
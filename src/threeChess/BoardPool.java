@@ -0,0 +1,70 @@
+package threeChess;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of boards, so that long runs of games, or searches that copy boards, 
+ * can reuse boards rather than creating new ones and leaving the garbage collector to clean up.
+ * Boards are reset or overwritten when they are taken from the pool.
+ * A pool is not thread safe: each thread should use its own pool, such as the one returned by local().
+ * **/
+public class BoardPool{
+
+  private static final ThreadLocal<BoardPool> LOCAL = ThreadLocal.withInitial(() -> new BoardPool(16));
+
+  private final ArrayDeque<Board> boards;
+  private final int capacity;
+
+  /**
+   * Creates an empty pool.
+   * @param capacity the maximum number of boards kept in the pool.
+   * **/
+  public BoardPool(int capacity){
+    this.capacity = capacity;
+    this.boards = new ArrayDeque<>(capacity);
+  }
+
+  /**@return the pool for the current thread**/
+  public static BoardPool local(){
+    return LOCAL.get();
+  }
+
+  /**
+   * Takes a board from the pool, set up for a new game.
+   * @param time the number of milliseconds each player has in total for the entire game.
+   * @return a board in the initial position.
+   * **/
+  public Board acquire(int time){
+    Board board = boards.pollLast();
+    if(board==null) return new Board(time);
+    board.reset(time);
+    return board;
+  }
+
+  /**
+   * Takes a board from the pool, set to the same state as the given board.
+   * This is an alternative to clone() for searches that copy boards many times.
+   * @param source the board to copy.
+   * @return a mutable board with the same state as the source.
+   * **/
+  public Board acquire(Board source){
+    Board board = boards.pollLast();
+    if(board==null) board = new Board(0);
+    board.copyFrom(source);
+    return board;
+  }
+
+  /**
+   * Returns a board to the pool. The board must not be used again by the caller.
+   * Only plain Boards are pooled: views, CheatBoards and other subclasses are ignored.
+   * @param board the board to return.
+   * **/
+  public void release(Board board){
+    if(board!=null && board.getClass()==Board.class && boards.size()<capacity) boards.addLast(board);
+  }
+
+  /**@return the number of boards in the pool**/
+  public int size(){
+    return boards.size();
+  }
+}
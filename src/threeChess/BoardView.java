@@ -0,0 +1,60 @@
+package threeChess;
+
+/**
+ * A read-only view of a Board, as it was when the view was taken with Board.view().
+ * Views share the state of the board they were taken from, so they are very cheap to create,
+ * and they never change, even as moves are made on the original board.
+ * Any attempt to move a piece on a view throws an UnsupportedOperationException.
+ * Agents that want to try out moves should make a mutableCopy(), or clone() the view, 
+ * which returns a mutable Board.
+ * Legal moves are always checked with the standard rules, even for views of a CheatBoard.
+ * **/
+public final class BoardView extends Board{
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Creates a view sharing the state of the given board.
+   * @param source the board to view.
+   * **/
+  BoardView(Board source){
+    super(source);
+  }
+
+  /**
+   * Views cannot be changed.
+   * @throws UnsupportedOperationException always.
+   * **/
+  public void move(Position start, Position end, int time){
+    throw new UnsupportedOperationException("Board views are read only, make a mutableCopy() to move pieces.");
+  }
+
+  /**Views cannot be changed.**/
+  void beforeChange(){
+    throw new UnsupportedOperationException("Board views are read only, make a mutableCopy() to move pieces.");
+  }
+
+  /**
+   * Returns a Board with the same state as this view, that can be changed independently of it.
+   * @return a mutable copy of the board.
+   * **/
+  public Board mutableCopy(){
+    Board copy = new Board(this);
+    copy.copyState();
+    return copy;
+  }
+
+  /**
+   * Returns a mutable copy of the board, the same as mutableCopy(),
+   * so agents written to clone the board they are given can still move pieces on the clone.
+   * @return a mutable copy of the board.
+   * **/
+  public Object clone(){
+    return mutableCopy();
+  }
+
+  /**Views are serialized as plain boards.**/
+  private Object writeReplace(){
+    return mutableCopy();
+  }
+}
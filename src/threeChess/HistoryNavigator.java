@@ -0,0 +1,101 @@
+package threeChess;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Random access to the positions of a game, for browsing its history in ThreeChessDisplay, replays and analysis tools.
+ * <p>
+ * Replaying a game from the start for every position asked for takes time proportional to the length of the game,
+ * so scrubbing through a long game is quadratic. Instead, the navigator keeps a working board,
+ * and copies of the board (keyframes) every interval moves. A position is found by stepping the working board
+ * forward if it is before it with no keyframe between them, or else by copying the nearest keyframe before it
+ * and replaying from there, so no position takes more than interval moves to reach once its keyframe has been made.
+ * Keyframes are made as they are passed, and at most a fixed number are kept, evicting the least recently used.
+ * <p>
+ * Moves are replayed on a CheatBoard, so games played on a CheatBoard can be browsed too.
+ * The game may go on while it is browsed, since moves are only ever added to its history.
+ * A navigator is not thread safe.
+ * **/
+public class HistoryNavigator{
+
+  /**The default number of moves between keyframes**/
+  public static final int DEFAULT_INTERVAL = 16;
+  /**The default number of keyframes kept**/
+  public static final int DEFAULT_MAX_KEYFRAMES = 64;
+
+  private final Board game;
+  private final int interval;
+  /**Keyframes by move index, in order of use**/
+  private final LinkedHashMap<Integer, Board> keyframes;
+  private final CheatBoard current = new CheatBoard();
+  private int currentIndex = 0;
+
+  /**
+   * Creates a navigator with the default interval and number of keyframes.
+   * @param game the game to browse.
+   * **/
+  public HistoryNavigator(Board game){
+    this(game, DEFAULT_INTERVAL, DEFAULT_MAX_KEYFRAMES);
+  }
+
+  /**
+   * Creates a navigator.
+   * @param game the game to browse.
+   * @param interval the number of moves between keyframes.
+   * @param maxKeyframes the most keyframes to keep.
+   * **/
+  public HistoryNavigator(Board game, int interval, int maxKeyframes){
+    if(interval<1 || maxKeyframes<1) throw new IllegalArgumentException("The interval and number of keyframes must be positive");
+    this.game = game;
+    this.interval = interval;
+    keyframes = new LinkedHashMap<Integer, Board>(16, 0.75f, true){
+      protected boolean removeEldestEntry(Map.Entry<Integer, Board> eldest){
+        return size()>maxKeyframes;
+      }
+    };
+  }
+
+  /**
+   * @param moveIndex the number of moves made, from 0 up to the game's move count.
+   * @return a read-only view of the board before move moveIndex, which stays valid after later calls.
+   * @throws IndexOutOfBoundsException if there is no such position.
+   * **/
+  public Board get(int moveIndex){
+    if(moveIndex<0 || moveIndex>game.getMoveCount())
+      throw new IndexOutOfBoundsException("No position after "+moveIndex+" moves");
+    boolean back = moveIndex<currentIndex;
+    int floor = back? 0: currentIndex;//only a keyframe after the working board saves replaying moves
+    Board keyframe = null;
+    int base = 0;
+    for(int k = moveIndex-moveIndex%interval; k>floor && keyframe==null; k-=interval)
+      if((keyframe = keyframes.get(k))!=null) base = k;
+    if(keyframe!=null){
+      current.copyFrom(keyframe);
+      currentIndex = base;
+    }
+    else if(back){
+      current.reset(0);
+      currentIndex = 0;
+    }
+    while(currentIndex<moveIndex){
+      int move = game.getPackedMove(currentIndex);
+      try{current.move(Moves.start(move), Moves.end(move));}
+      catch(ImpossiblePositionException e){}
+      currentIndex++;
+      if(currentIndex%interval==0 && !keyframes.containsKey(currentIndex)){
+        CheatBoard copy = new CheatBoard();
+        copy.copyFrom(current);
+        keyframes.put(currentIndex, copy);
+      }
+    }
+    return current.view();
+  }
+
+  /**Forgets every keyframe, for example when the game's board is reset for a new game.**/
+  public void clear(){
+    keyframes.clear();
+    current.reset(0);
+    currentIndex = 0;
+  }
+}
@@ -0,0 +1,301 @@
+package threeChess;
+
+/**
+ * Generates all legal moves from a position, using tables of steps and rays worked out once from Board.step,
+ * rather than testing candidate moves one at a time with Board.isLegalMove.
+ * The moves generated are exactly those that isLegalMove accepts.
+ * <p>
+ * The generator works on arrays of piece codes (see BoardCodec), indexed by position ordinal,
+ * so searches can use it on their own compact copies of a position. Moves are packed by Moves.pack.
+ * **/
+public final class MoveGenerator{
+
+  /**Selects moves that take a piece**/
+  public static final int CAPTURES = 1;
+  /**Selects moves that do not take a piece**/
+  public static final int QUIETS = 2;
+  /**Selects all moves**/
+  public static final int ALL = CAPTURES|QUIETS;
+
+  private static final Position[] POSITIONS = Position.values();
+  private static final PieceType[] TYPES = PieceType.values();
+  /**Knight and king targets, by start position**/
+  private static final int[][] KNIGHT = new int[96][], KING = new int[96][];
+  /**Rays of rooks, bishops and queens, by type ordinal, start position and step**/
+  private static final int[][][][] RAYS = new int[6][][][];
+  /**Pawn targets by colour, start position and step (forward, double forward, then the four captures), or -1 if off the board**/
+  private static final int[][][] PAWN = new int[3][96][6];
+  /**The squares a slider passes over between a start and end position, one array per ray reaching the end, by type ordinal**/
+  private static final int[][][][] PATHS = new int[6][96*96][][];
+  /**Whether a knight or king on a start position reaches an end position, indexed by start*96+end**/
+  private static final boolean[] KNIGHT_REACHES = new boolean[96*96], KING_REACHES = new boolean[96*96];
+  /**For each start*96+end, a bit for each piece that would attack end from start on an empty board, indexed by piece code-1:
+   * the pawns of each colour in bits 0 to 2, and the other types in bits 3 to 7**/
+  private static final byte[] REACH = new byte[96*96];
+  /**The bit in REACH for each piece code**/
+  private static final int[] REACH_BIT = new int[19];
+
+  static{
+    Board board = new Board(0);//Board.step only uses its arguments
+    for(Position start: POSITIONS){
+      int s = start.ordinal();
+      KNIGHT[s] = targets(board, PieceType.KNIGHT, start);
+      KING[s] = targets(board, PieceType.KING, start);
+      for(Colour c: Colour.values()){
+        Piece pawn = new Piece(PieceType.PAWN, c);
+        Direction[][] steps = PieceType.PAWN.getSteps();
+        for(int i = 0; i<steps.length; i++){
+          try{PAWN[c.ordinal()][s][i] = board.step(pawn, steps[i], start).ordinal();}
+          catch(ImpossiblePositionException e){PAWN[c.ordinal()][s][i] = -1;}
+        }
+      }
+    }
+    for(PieceType type: new PieceType[]{PieceType.BISHOP, PieceType.ROOK, PieceType.QUEEN}){
+      Direction[][] steps = type.getSteps();
+      Piece piece = new Piece(type, Colour.BLUE);//only pawn steps depend on colour
+      RAYS[type.ordinal()] = new int[96][steps.length][];
+      for(Position start: POSITIONS){
+        for(int i = 0; i<steps.length; i++){
+          int[] ray = new int[96];
+          int n = 0;
+          try{
+            Position tmp = board.step(piece, steps[i], start);
+            while(n<96){
+              ray[n++] = tmp.ordinal();
+              tmp = board.step(piece, steps[i], tmp, tmp.getColour()!=start.getColour());
+            }
+          }catch(ImpossiblePositionException e){}//the ray leaves the board
+          RAYS[type.ordinal()][start.ordinal()][i] = java.util.Arrays.copyOf(ray, n);
+          for(int j = 0; j<n; j++){
+            int[][] paths = PATHS[type.ordinal()][start.ordinal()*96+ray[j]];
+            paths = paths==null? new int[1][]: java.util.Arrays.copyOf(paths, paths.length+1);
+            paths[paths.length-1] = java.util.Arrays.copyOf(ray, j);
+            PATHS[type.ordinal()][start.ordinal()*96+ray[j]] = paths;
+          }
+        }
+      }
+    }
+    for(int s = 0; s<96; s++){
+      for(int end: KNIGHT[s]) KNIGHT_REACHES[s*96+end] = true;
+      for(int end: KING[s]) KING_REACHES[s*96+end] = true;
+    }
+    for(int code = 1; code<19; code++){
+      int type = (code-1)%6;
+      REACH_BIT[code] = type==0? 1<<(code-1)/6: 1<<(2+type);
+    }
+    byte[] squares = new byte[96];
+    for(int code = 1; code<19; code++){
+      for(int s = 0; s<96; s++){
+        squares[s] = (byte) code;
+        for(int e = 0; e<96; e++)
+          if(e!=s && (attacks(squares, s, e) || PATHS[(code-1)%6][s*96+e]!=null)) REACH[s*96+e]|=REACH_BIT[code];
+        squares[s] = 0;
+      }
+    }
+  }
+
+  /**@return the distinct positions reached by one step of a knight or king**/
+  private static int[] targets(Board board, PieceType type, Position start){
+    Piece piece = new Piece(type, Colour.BLUE);
+    return java.util.Arrays.stream(type.getSteps()).mapToInt(step -> {
+      try{return board.step(piece, step, start).ordinal();}
+      catch(ImpossiblePositionException e){return -1;}
+    }).filter(p -> p>=0).distinct().toArray();
+  }
+
+  private MoveGenerator(){}
+
+  /**
+   * Copies the pieces of a board into an array of piece codes.
+   * @param board the board.
+   * @param squares an array of 96 codes to fill.
+   * @return the array.
+   * **/
+  public static byte[] squares(Board board, byte[] squares){
+    for(Position p: POSITIONS) squares[p.ordinal()] = (byte) BoardCodec.code(board.getPiece(p));
+    return squares;
+  }
+
+  /**
+   * Generates the legal moves of the player to move on a board.
+   * @param board the board.
+   * @param moves an array for the moves, with room for at least 512.
+   * @return the number of moves generated.
+   * **/
+  public static int generate(Board board, int[] moves){
+    return generate(squares(board, new byte[96]), board.getTurn(), moves);
+  }
+
+  /**
+   * Generates the legal moves of a player.
+   * @param squares the piece code on each position.
+   * @param turn the player to move.
+   * @param moves an array for the moves, with room for at least 512.
+   * @return the number of moves generated.
+   * **/
+  public static int generate(byte[] squares, Colour turn, int[] moves){
+    return generate(squares, turn, moves, ALL);
+  }
+
+  /**
+   * Generates some of the legal moves of a player.
+   * @param squares the piece code on each position.
+   * @param turn the player to move.
+   * @param moves an array for the moves, with room for at least 512.
+   * @param kinds the moves to generate: CAPTURES, QUIETS or ALL.
+   * @return the number of moves generated.
+   * **/
+  public static int generate(byte[] squares, Colour turn, int[] moves, int kinds){
+    int n = 0;
+    int colour = turn.ordinal();
+    for(int s = 0; s<96; s++){
+      int code = squares[s];
+      if(code!=0 && (code-1)/6==colour) n = generate(squares, s, moves, n, kinds);
+    }
+    return n;
+  }
+
+  /**
+   * Generates the legal moves of one piece, as if it were its owner's turn.
+   * @param squares the piece code on each position.
+   * @param start the ordinal of the position of the piece.
+   * @param moves an array for the moves.
+   * @param n the number of moves already in the array.
+   * @return the number of moves in the array afterwards.
+   * **/
+  public static int generate(byte[] squares, int start, int[] moves, int n){
+    return generate(squares, start, moves, n, ALL);
+  }
+
+  /**
+   * Generates some of the legal moves of one piece, as if it were its owner's turn.
+   * @param squares the piece code on each position.
+   * @param start the ordinal of the position of the piece.
+   * @param moves an array for the moves.
+   * @param n the number of moves already in the array.
+   * @param kinds the moves to generate: CAPTURES, QUIETS or ALL.
+   * @return the number of moves in the array afterwards.
+   * **/
+  public static int generate(byte[] squares, int start, int[] moves, int n, int kinds){
+    boolean captures = (kinds&CAPTURES)!=0, quiets = (kinds&QUIETS)!=0;
+    int code = squares[start];
+    if(code==0) return n;
+    int colour = (code-1)/6;
+    PieceType type = TYPES[(code-1)%6];
+    switch(type){
+      case PAWN:
+        int[] steps = PAWN[colour][start];
+        if(quiets && steps[0]>=0 && squares[steps[0]]==0){
+          moves[n++] = start<<8 | steps[0];
+          if(steps[1]>=0 && squares[steps[1]]==0 && start/32==colour && start%4==1 && squares[start+1]==0)//row 2 is the next ordinal
+            moves[n++] = start<<8 | steps[1];
+        }
+        long seen = 0, seen2 = 0;//the captures can repeat targets
+        for(int i = 2; i<6 && captures; i++){
+          int end = steps[i];
+          if(end<0 || squares[end]==0 || (squares[end]-1)/6==colour) continue;
+          if(end<64? (seen&1L<<end)!=0: (seen2&1L<<end)!=0) continue;
+          if(end<64) seen|=1L<<end; else seen2|=1L<<end;
+          moves[n++] = start<<8 | end;
+        }
+        return n;
+      case KNIGHT:
+        return jumps(squares, start, colour, KNIGHT[start], moves, n, captures, quiets);
+      case KING:
+        n = jumps(squares, start, colour, KING[start], moves, n, captures, quiets);
+        if(quiets && start==32*colour+16){//row 0, column 4: castling
+          int back = 32*colour;
+          if(isRook(squares[back+28], colour) && squares[back+20]==0 && squares[back+24]==0 && !contains(moves, n, start<<8 | back+24))
+            moves[n++] = start<<8 | back+24;
+          if(isRook(squares[back], colour) && squares[back+4]==0 && squares[back+8]==0 && squares[back+12]==0 && !contains(moves, n, start<<8 | back+8))
+            moves[n++] = start<<8 | back+8;
+        }
+        return n;
+      default:
+        long seenLow = 0, seenHigh = 0;//different steps can reach the same position
+        for(int[] ray: RAYS[type.ordinal()][start]){
+          for(int end: ray){
+            int target = squares[end];
+            if(target!=0 && (target-1)/6==colour) break;
+            boolean repeat = end<64? (seenLow&1L<<end)!=0: (seenHigh&1L<<end)!=0;
+            if(!repeat && (target==0? quiets: captures)){
+              if(end<64) seenLow|=1L<<end; else seenHigh|=1L<<end;
+              moves[n++] = start<<8 | end;
+            }
+            if(target!=0) break;
+          }
+        }
+        return n;
+    }
+  }
+
+  /**Adds the knight or king moves to targets that are empty or hold an opponent's piece, as selected.**/
+  private static int jumps(byte[] squares, int start, int colour, int[] targets, int[] moves, int n, boolean captures, boolean quiets){
+    for(int end: targets){
+      int target = squares[end];
+      if(target==0? quiets: captures && (target-1)/6!=colour) moves[n++] = start<<8 | end;
+    }
+    return n;
+  }
+
+  private static boolean isRook(int code, int colour){
+    return code==BoardCodec.code(Colour.values()[colour], PieceType.ROOK);
+  }
+
+  private static boolean contains(int[] moves, int n, int move){
+    for(int i = 0; i<n; i++) if(moves[i]==move) return true;
+    return false;
+  }
+
+  /**
+   * Checks whether a piece could capture on a position, if it were its owner's turn and the position held an opponent's piece.
+   * Sliding pieces must have a clear path, so removing pieces from squares can reveal attacks behind them.
+   * @param squares the piece code on each position.
+   * @param start the ordinal of the position of the piece.
+   * @param end the ordinal of the position attacked.
+   * @return true if the piece attacks the position.
+   * **/
+  public static boolean attacks(byte[] squares, int start, int end){
+    int code = squares[start];
+    if(code==0 || start==end) return false;
+    int type = (code-1)%6;
+    switch(TYPES[type]){
+      case PAWN:
+        int[] steps = PAWN[(code-1)/6][start];
+        return steps[2]==end || steps[3]==end || steps[4]==end || steps[5]==end;
+      case KNIGHT: return KNIGHT_REACHES[start*96+end];
+      case KING: return KING_REACHES[start*96+end];
+      default:
+        int[][] paths = PATHS[type][start*96+end];
+        if(paths==null) return false;
+        for(int[] path: paths){
+          boolean clear = true;
+          for(int p: path) if(squares[p]!=0){clear = false; break;}
+          if(clear) return true;
+        }
+        return false;
+    }
+  }
+
+  /**
+   * Checks whether a piece could ever capture on a position from where it stands, if the squares between were empty.
+   * @param squares the piece code on each position.
+   * @param start the ordinal of the position of the piece.
+   * @param end the ordinal of the position.
+   * @return true if the piece attacks the position on an empty board.
+   * **/
+  public static boolean reaches(byte[] squares, int start, int end){
+    return (REACH[start*96+end]&REACH_BIT[squares[start]])!=0;
+  }
+
+  /**
+   * Counts the legal moves of one piece, as if it were its owner's turn.
+   * @param squares the piece code on each position.
+   * @param start the ordinal of the position of the piece.
+   * @param scratch an array with room for the piece's moves, at least 128.
+   * @return the number of moves.
+   * **/
+  public static int mobility(byte[] squares, int start, int[] scratch){
+    return generate(squares, start, scratch, 0);
+  }
+}
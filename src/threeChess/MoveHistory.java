@@ -0,0 +1,76 @@
+package threeChess;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The moves of a game, packed as ints by Moves.pack, in fixed size chunks.
+ * Histories are persistent: fork() makes a copy that shares every chunk with the original,
+ * copying only the small array of chunk references, and each copy can then be appended to independently.
+ * Chunks are append only. The first history to append to a shared chunk claims the next slot in it;
+ * any other history sharing that chunk copies it (at most CHUNK moves) before appending.
+ * So copies of a long game cost almost nothing, and only pay for the moves made after they were taken.
+ * **/
+final class MoveHistory{
+
+  private static final int SHIFT = 6;
+  /**The number of moves in each chunk**/
+  private static final int CHUNK = 1<<SHIFT;
+
+  /**A chunk of moves, and the number of slots in it claimed by some history**/
+  private static final class Chunk{
+    private final int[] moves = new int[CHUNK];
+    private final AtomicInteger claimed = new AtomicInteger();
+  }
+
+  /**The chunks of this history, the last one possibly partly filled**/
+  private Chunk[] chunks;
+  /**The number of moves in this history**/
+  private int size;
+
+  /**Creates an empty history.**/
+  MoveHistory(){
+    chunks = new Chunk[4];
+  }
+
+  private MoveHistory(Chunk[] chunks, int size){
+    this.chunks = chunks;
+    this.size = size;
+  }
+
+  /**@return the number of moves**/
+  int size(){
+    return size;
+  }
+
+  /**@return the move at the given index, packed by Moves.pack**/
+  int get(int index){
+    return chunks[index>>SHIFT].moves[index & (CHUNK-1)];
+  }
+
+  /**
+   * Appends a move to the history.
+   * @param move the move, packed by Moves.pack.
+   * **/
+  void add(int move){
+    int c = size>>SHIFT, offset = size & (CHUNK-1);
+    if(c==chunks.length) chunks = Arrays.copyOf(chunks, 2*chunks.length);
+    Chunk chunk = chunks[c];
+    if(offset==0 || !chunk.claimed.compareAndSet(offset, offset+1)){
+      //a new chunk, or another history has already appended to this one, so take a private copy.
+      Chunk copy = new Chunk();
+      if(offset>0) System.arraycopy(chunk.moves, 0, copy.moves, 0, offset);
+      copy.claimed.set(offset+1);
+      chunks[c] = chunk = copy;
+    }
+    chunk.moves[offset] = move;
+    size++;
+  }
+
+  /**
+   * @return a copy of this history sharing all of its moves, that can be appended to independently.
+   * **/
+  MoveHistory fork(){
+    return new MoveHistory(chunks.clone(), size);
+  }
+}
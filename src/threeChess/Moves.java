@@ -0,0 +1,51 @@
+package threeChess;
+
+/**
+ * Static helpers for representing a move as a single int,
+ * rather than an array of two positions.
+ * The packed form is the start position's ordinal in the high byte
+ * and the end position's ordinal in the low byte, so it also fits in two bytes.
+ * **/
+public final class Moves{
+
+  private static final Position[] POSITIONS = Position.values();
+
+  private Moves(){}
+
+  /**
+   * @param start the start position of the move.
+   * @param end the end position of the move.
+   * @return the move packed into an int.
+   * **/
+  public static int pack(Position start, Position end){
+    return start.ordinal()<<8 | end.ordinal();
+  }
+
+  /**
+   * @param move a two element array of the start and end positions.
+   * @return the move packed into an int.
+   * **/
+  public static int pack(Position[] move){
+    return pack(move[0], move[1]);
+  }
+
+  /**@return the start position of a packed move**/
+  public static Position start(int move){
+    return POSITIONS[(move>>8) & 0xFF];
+  }
+
+  /**@return the end position of a packed move**/
+  public static Position end(int move){
+    return POSITIONS[move & 0xFF];
+  }
+
+  /**@return a packed move as a two element array of positions, as used by Agent.playMove**/
+  public static Position[] unpack(int move){
+    return new Position[]{start(move), end(move)};
+  }
+
+  /**@return a String representation of a packed move, such as BA2-BA4**/
+  public static String toString(int move){
+    return start(move)+"-"+end(move);
+  }
+}
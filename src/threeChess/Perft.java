@@ -0,0 +1,128 @@
+package threeChess;
+
+import java.util.*;
+
+/**
+ * Checks MoveGenerator against Board.isLegalMove.
+ * Walks the tree of every legal move from the initial position to a fixed depth (perft),
+ * and plays random games, comparing at every position the moves generated
+ * with the moves isLegalMove accepts out of every pair of positions.
+ * Any difference is printed, along with the moves leading to it.
+ * Usage: Perft depth [random-games]
+ * **/
+public class Perft{
+
+  private static final int MAX_REPORTED = 20;
+
+  private final int[][] moves;
+  private long positions = 0;
+  private long mismatches = 0;
+  private final ArrayDeque<String> line = new ArrayDeque<>();
+
+  /**
+   * Creates a checker.
+   * @param depth the deepest perft that will be run.
+   * **/
+  public Perft(int depth){
+    moves = new int[depth+1][Position.values().length*Position.values().length];
+  }
+
+  /**@return the number of positions checked**/
+  public long getPositions(){return positions;}
+
+  /**@return the number of moves on which the generator and isLegalMove disagreed**/
+  public long getMismatches(){return mismatches;}
+
+  /**
+   * Counts the positions reached by every sequence of legal moves, checking the moves generated at each.
+   * @param board the position to start from. It is not changed.
+   * @param depth the number of moves to make.
+   * @return the number of positions at the given depth, counting games that end sooner at the move that ended them.
+   * **/
+  public long perft(Board board, int depth){
+    int n = check(board, moves[depth]);
+    if(depth==0 || board.gameOver()) return 1;
+    long leaves = 0;
+    for(int i = 0; i<n; i++){
+      int move = moves[depth][i];
+      line.addLast(Moves.toString(move));
+      leaves+=perft(play(board, move), depth-1);
+      line.removeLast();
+    }
+    return leaves;
+  }
+
+  /**
+   * Plays a random game, checking the moves generated at every position.
+   * @param random the source of the moves.
+   * **/
+  public void playout(Random random){
+    Board board = new Board(0);
+    line.clear();
+    while(!board.gameOver()){
+      int n = check(board, moves[0]);
+      int move = moves[0][random.nextInt(n)];
+      line.addLast(Moves.toString(move));
+      board = play(board, move);
+    }
+    line.clear();
+  }
+
+  /**
+   * Generates the moves of a position, and compares them with isLegalMove.
+   * @param board the position.
+   * @param moves an array for the moves generated.
+   * @return the number of moves generated.
+   * **/
+  private int check(Board board, int[] moves){
+    positions++;
+    int n = MoveGenerator.generate(board, moves);
+    HashSet<Integer> generated = new HashSet<>();
+    for(int i = 0; i<n; i++)
+      if(!generated.add(moves[i])) report("generated twice", moves[i]);
+    for(Position start: Position.values())
+      for(Position end: Position.values())
+        if(board.isLegalMove(start, end)!=generated.contains(Moves.pack(start, end)))
+          report(generated.contains(Moves.pack(start, end))? "generated but illegal": "legal but not generated", Moves.pack(start, end));
+    return n;
+  }
+
+  /**Prints a difference, unless too many have been printed already.**/
+  private void report(String problem, int move){
+    if(mismatches++<MAX_REPORTED) System.out.println(Moves.toString(move)+" "+problem+" after "+line);
+  }
+
+  /**@return a copy of the board with the move made**/
+  private static Board play(Board board, int move){
+    try{
+      Board next = (Board) board.clone();
+      next.move(Moves.start(move), Moves.end(move));
+      return next;
+    }
+    catch(CloneNotSupportedException | ImpossiblePositionException e){
+      throw new IllegalStateException("Generated an impossible move "+Moves.toString(move), e);
+    }
+  }
+
+  /**
+   * Runs perft from the initial position, then checks random games.
+   * Usage: Perft depth [random-games]
+   * **/
+  public static void main(String[] args){
+    if(args.length<1){
+      System.out.println("Usage: java threeChess.Perft depth [random-games]");
+      return;
+    }
+    int depth = Integer.parseInt(args[0]);
+    int games = args.length>1? Integer.parseInt(args[1]): 0;
+    Perft perft = new Perft(depth);
+    for(int d = 0; d<=depth; d++){
+      long start = System.nanoTime();
+      long leaves = perft.perft(new Board(0), d);
+      System.out.println("perft("+d+") = "+leaves+" in "+(System.nanoTime()-start)/1_000_000L+"ms");
+    }
+    Random random = new Random();
+    for(int g = 0; g<games; g++) perft.playout(random);
+    System.out.println(perft.getPositions()+" positions checked, "+perft.getMismatches()+" mismatches");
+  }
+}
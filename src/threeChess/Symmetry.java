@@ -0,0 +1,109 @@
+package threeChess;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The three-fold rotational symmetry of the board.
+ * Rotating the colours one place (Blue to Green, Green to Red, Red to Blue) maps each section of the board 
+ * to the next one, each piece to the piece of the next colour, and the turn order onto itself.
+ * So a position and its two rotations are the same game, seen from a different seat,
+ * and their moves and results correspond under the same rotation.
+ * <p>
+ * The canonical form of a position is the rotation in which Blue is to move.
+ * Board.getCanonicalKey() is the hash of the canonical form, which is the same for all three rotations,
+ * and canonicalRotation(board) is the rotation that takes the board to its canonical form.
+ * To use a table keyed by the canonical key, rotate moves and colours by the canonical rotation
+ * when storing them, and by its inverse when reading them back.
+ * **/
+public final class Symmetry{
+
+  private static final Position[] POSITIONS = Position.values();
+  private static final Colour[] COLOURS = Colour.values();
+
+  private Symmetry(){}
+
+  /**
+   * @param colour a colour.
+   * @param rotation the number of places to rotate the colours, 0, 1 or 2.
+   * @return the colour the given colour is mapped to.
+   * **/
+  public static Colour rotate(Colour colour, int rotation){
+    return COLOURS[(colour.ordinal()+rotation)%3];
+  }
+
+  /**
+   * @param position a position.
+   * @param rotation the number of places to rotate the colours, 0, 1 or 2.
+   * @return the position in the same row and column of the rotated section.
+   * **/
+  public static Position rotate(Position position, int rotation){
+    return POSITIONS[(position.ordinal()+32*rotation)%96];
+  }
+
+  /**
+   * @param move a move packed by Moves.pack.
+   * @param rotation the number of places to rotate the colours, 0, 1 or 2.
+   * @return the rotated move, packed by Moves.pack.
+   * **/
+  public static int rotateMove(int move, int rotation){
+    return Moves.pack(rotate(Moves.start(move), rotation), rotate(Moves.end(move), rotation));
+  }
+
+  /**
+   * @param scores an array of values indexed by colour ordinal, such as the scores returned by ThreeChess.play.
+   * @param rotation the number of places to rotate the colours, 0, 1 or 2.
+   * @return the array with each colour's value moved to the rotated colour.
+   * **/
+  public static int[] rotateScores(int[] scores, int rotation){
+    int[] rotated = new int[3];
+    for(int c = 0; c<3; c++) rotated[(c+rotation)%3] = scores[c];
+    return rotated;
+  }
+
+  /**@return the rotation that undoes the given rotation**/
+  public static int inverse(int rotation){
+    return (3-rotation)%3;
+  }
+
+  /**
+   * @param board a board.
+   * @return the rotation that takes the board to its canonical form, where Blue is to move.
+   * **/
+  public static int canonicalRotation(Board board){
+    return inverse(board.getTurn().ordinal());
+  }
+
+  /**
+   * Creates a rotated copy of a board, with all pieces, clocks, captured pieces and moves rotated.
+   * The hash of the copy is board.getHashKey() of the rotated board, 
+   * and its canonical key is the same as the original's.
+   * @param board the board to rotate.
+   * @param rotation the number of places to rotate the colours, 0, 1 or 2.
+   * @return a new board which is the rotation of the given board.
+   * **/
+  public static Board rotate(Board board, int rotation){
+    Piece[] squares = new Piece[96];
+    for(Position p: POSITIONS) squares[rotate(p, rotation).ordinal()] = rotate(board.getPiece(p), rotation);
+    int[] times = new int[3];
+    List<List<Piece>> taken = new ArrayList<>(3);
+    for(int c = 0; c<3; c++) taken.add(null);
+    for(Colour c: COLOURS){
+      Colour to = rotate(c, rotation);
+      times[to.ordinal()] = board.getTimeLeft(c);
+      List<Piece> pieces = new ArrayList<>();
+      for(Piece piece: board.capturedBy(c)) pieces.add(rotate(piece, rotation));
+      taken.set(to.ordinal(), pieces);
+    }
+    List<Position[]> moves = new ArrayList<>(board.getMoveCount());
+    for(int i = 0; i<board.getMoveCount(); i++) moves.add(Moves.unpack(rotateMove(board.getPackedMove(i), rotation)));
+    Board rotated = new Board(0);
+    rotated.restore(squares, rotate(board.getTurn(), rotation), board.gameOver(), times, taken, moves);
+    return rotated;
+  }
+
+  /**@return a piece of the same type and the rotated colour, or null for null**/
+  private static Piece rotate(Piece piece, int rotation){
+    return piece==null?null:new Piece(piece.getType(), rotate(piece.getColour(), rotation));
+  }
+}
@@ -14,6 +14,8 @@ public class ThreeChess{
   private final static int pause = 1000;//The pause in milliseconds between updating the graphical board
   private final static int[][] perms = {{0,1,2},{0,2,1},{1,0,2},{1,2,0},{2,0,1},{2,1,0}};//to randomise play order
   private final static Random random = new Random();
+  private final static int deadlineMargin = 10;//milliseconds of an anytime agent's clock kept back for collecting its move
+  private final static int stopTimeout = 100;//milliseconds to wait for an anytime agent's search to return once stopped
   
   /**
    * A private class for representing the statistics of an agent in a tournament.
@@ -78,12 +80,13 @@ public class ThreeChess{
    * @param timeLimit the cumulative time each player has (in seconds). To specify an untimed game, set as less than or equal to zero.
    * @param displayOn a boolean flag for whether the game should be graphically displayed
    * @param logFile a FileName to print the game logs to. If this can't be found, or is null, System.out will be used instead.
+   * The log is written asynchronously, and gzip compressed if the file name ends in ".gz".
    * **/
   public static void  tournament(Agent[] bots, int timeLimit, int numGames, Boolean displayOn, String logFile){
     HashMap<Agent, Statistics> scoreboard = new HashMap<Agent,Statistics>();
     PrintStream logger = System.out;
     try{
-      if(logFile!=null) logger = new PrintStream(new File(logFile));
+      if(logFile!=null) logger = new AsyncLogStream(new File(logFile), logFile.endsWith(".gz"));
     }
     catch(IOException e){System.out.println(logFile+"not found: "+e.getMessage()+"\nUsing System.out instead.");}
     for(Agent a: bots) scoreboard.put(a, new Statistics(a));
@@ -114,6 +117,7 @@ public class ThreeChess{
     int rank = 1;
     for(Statistics stat:results)
       logger.println(rank++ +"\t"+stat.agent+"\t\t"+stat.won+"\t"+stat.lost+"\t"+stat.played+"\t"+stat.average()+"\n");
+    if(logger!=System.out) logger.close();
   }
   
   /**
@@ -125,11 +129,13 @@ public class ThreeChess{
    * @param red the Agent playing the red pieces.
    * @param timeLimit the cumulative time each player has (in seconds). To specify an untimed game, set as less than or equal to zero.
    * @param logger a printStream to write the game moves to.
+   * Use an AsyncLogStream to keep disk writes off the game thread, and out of the agents' move times.
    * @param displayOn a boolean flag for whether the game should be graphically displayed
    * @return an array of three ints, the scores for blue, green and red, in that order.
    * **/
   public static int[] play(Agent blue, Agent green, Agent red, int timeLimit, PrintStream logger, boolean displayOn){
-    Board board = new Board(timeLimit>0?timeLimit*1000:1);
+    BoardPool pool = BoardPool.local();
+    Board board = pool.acquire(timeLimit>0?timeLimit*1000:1);
     boolean timed = timeLimit>0;
     logger.println("======NEW GAME======");
     logger.println("BLUE: "+blue.toString());
@@ -140,14 +146,34 @@ public class ThreeChess{
       display = new ThreeChessDisplay(board, blue.toString(), green.toString(), red.toString());
       GUIAgent.currentDisplay = display;
     }
+    Agent[] agents = {blue, green, red};
+    Agent[] distinct = Arrays.stream(agents).distinct().toArray(Agent[]::new);//agents may play themselves
+    Map<Agent, AnytimeMove> searches = new IdentityHashMap<>();//the latest search of each anytime agent
+    Map<Agent, Long> owed = new IdentityHashMap<>();//nanoseconds each agent has spent in moveMade since its last turn
+    BoardView start = board.view();
+    for(Colour c: Colour.values()) agents[c.ordinal()].gameStarted(c, start);
     while(!board.gameOver()){//note in an untimed game, this loop can run infinitely.
       Colour colour = board.getTurn();
-      Agent current = (colour==Colour.BLUE?blue:(colour==Colour.GREEN?green:red));
-      long startTime = System.nanoTime();
-      Position[] move = null;
-      try{
-        move = current.playMove((Board) board.clone());
-      }catch(CloneNotSupportedException e){}
+      Agent current = agents[colour.ordinal()];
+      long startTime = System.nanoTime()-owed.getOrDefault(current, 0L);//moveMade is charged to the agent's next turn
+      owed.remove(current);
+      current.stopPondering();//charged to the agent, so it can't keep searching on its opponents' time
+      Position[] move;
+      AnytimeMove previous = searches.get(current);
+      if(previous!=null && !previous.isDone()){//a search that ignored being stopped must not run twice
+        logger.println(colour + ": the previous search has not returned");
+        move = null;
+      }
+      else if(current instanceof AnytimeAgent){//searches on its own thread, and its latest move is taken at the deadline
+        AnytimeMove anytime = startSearch((AnytimeAgent) current, board.view());
+        searches.put(current, anytime);
+        //hold back the whole stop wait too, as it is charged to the agent's clock
+        long deadline = startTime+(board.getTimeLeft(colour)-deadlineMargin-stopTimeout)*1_000_000L;
+        try{move = timed?anytime.await(deadline):anytime.await();}
+        catch(InterruptedException e){move = anytime.get();}
+        stopSearch(anytime);//charged to the agent, like stopPondering
+      }
+      else move = current.playMove(board.view());//a read-only view, so nothing is copied
       //How to deal with infinite loops here?
       //make agents runnable abstract classes and provide a final method for running a move?
       //set board as a variable
@@ -158,6 +184,13 @@ public class ThreeChess{
         try{
           board.move(move[0],move[1],(timed?(int)time:0));
           logger.println(colour + ": " + move[0] + '-' + move[1] + " t:" + time);
+          Board view = board.view();
+          for(Agent agent: distinct){//timed, so an agent can't search on the game thread for free
+            long notified = System.nanoTime();
+            agent.moveMade(view, colour, move[0], move[1]);
+            owed.merge(agent, System.nanoTime()-notified, Long::sum);
+          }
+          if(!view.gameOver()) current.startPondering(view);
           if(displayOn){
             // There's no point in sleeping if we have to wait for the user to input their move anyway.
             if (current.isAutonomous()) {
@@ -172,6 +205,9 @@ public class ThreeChess{
       else{//Illegal move results in immediate loss, -2 penalty, and a win awarded to the other two players.
         int[] ret = {1,1,1};
         ret[board.getTurn().ordinal()] = -2;
+        endGame(agents, board, ret);
+        logger.flush();
+        if(!displayOn) pool.release(board);//the display keeps the board for browsing the history
         return ret;
       }
     }
@@ -180,11 +216,57 @@ public class ThreeChess{
     int[] ret = {0,0,0};
     ret[board.getWinner().ordinal()] = 1;
     ret[board.getLoser().ordinal()] = -1;
+    endGame(agents, board, ret);
     for(Colour c:Colour.values())
       logger.println(c+" score:"+ret[c.ordinal()]+" time:"+board.getTimeLeft(c)+" points:"+ ret[c.ordinal()]);
+    logger.flush();//make sure the game is on disk before the next one starts
+    if(!displayOn) pool.release(board);
     return ret;
   }
 
+  /**
+   * Starts an anytime agent's search on a thread of its own.
+   * @param agent the agent to move.
+   * @param board a read-only view of the board.
+   * @return the handle the agent publishes its moves to, which is finished when the search returns.
+   * **/
+  private static AnytimeMove startSearch(AnytimeAgent agent, Board board){
+    AnytimeMove move = new AnytimeMove();
+    Thread searcher = new Thread(() -> {
+      try{agent.search(board, move);}
+      finally{move.finish();}
+    }, agent+" search");
+    searcher.setDaemon(true);//a search that never returns must not keep the program running
+    searcher.start();
+    return move;
+  }
+
+  /**
+   * Stops an anytime agent's search, and waits a short time for it to return,
+   * so the agent is not searching while it is told about the move.
+   * @param move the handle of the search.
+   * **/
+  private static void stopSearch(AnytimeMove move){
+    move.stop();
+    try{move.await(System.nanoTime()+stopTimeout*1_000_000L);}
+    catch(InterruptedException e){}
+  }
+
+  /**
+   * Tells every agent to stop pondering at the end of a game, and then that the game has ended:
+   * gameEnded once for each colour it played, and finalBoard once.
+   * Other game runners, such as SelfPlay, call this so agents see the same callbacks as in play.
+   * @param agents the blue, green and red agents.
+   * @param board the final board.
+   * @param scores the scores of blue, green and red.
+   * **/
+  public static void endGame(Agent[] agents, Board board, int[] scores){
+    for(Agent agent: agents) agent.stopPondering();
+    BoardView view = board.view();
+    for(Colour c: Colour.values()) agents[c.ordinal()].gameEnded(c, view, scores[c.ordinal()]);
+    for(Agent agent: Arrays.stream(agents).distinct().toArray(Agent[]::new)) agent.finalBoard(view);
+  }
+
   /**
    * Runs a timed threeChess game between three players
    * with a graphical board and moves logged to System.out.
@@ -32,6 +32,7 @@ public class ThreeChessDisplay extends JFrame {
   private final String[] players;
   private final Canvas canvas;
   private final Board board;
+  private final HistoryNavigator history;
   private final int size = 800;
   private static int[][][] flanks;
   private MoveFuture manualMoveFuture;
@@ -166,6 +167,7 @@ public class ThreeChessDisplay extends JFrame {
   public ThreeChessDisplay(Board board, String bluePlayer, String greenPlayer, String redPlayer){
     super("ThreeChess");
     this.board = board;
+    history = new HistoryNavigator(board);
 
     canvas = new Canvas();
     setBounds(0, 0, size, size);
@@ -210,14 +212,7 @@ public class ThreeChessDisplay extends JFrame {
 
   /** @return the state of the board before move {@param moveIndex}. **/
   private Board getHistoryBoard(int moveIndex) {
-    CheatBoard historyBoard = new CheatBoard();
-    for (int index = 0; index < moveIndex; ++index) {
-      Position[] move = board.getMove(index);
-      try {
-        historyBoard.move(move[0], move[1]);
-      } catch (ImpossiblePositionException e) {}
-    }
-    return historyBoard;
+    return history.get(moveIndex);
   }
 
   /** @return whether a past move is currently being displayed. **/
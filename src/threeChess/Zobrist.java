@@ -0,0 +1,106 @@
+package threeChess;
+
+import java.util.SplittableRandom;
+
+/**
+ * Zobrist hashing of board positions.
+ * A position's hash is the exclusive or of a random key for each piece on each square,
+ * and a key for the player whose turn it is. 
+ * Hashes can be updated incrementally as moves are made, see Board.getHashKey().
+ * Hashes of the position rotated between the colours (see Symmetry) can be computed by the same keys,
+ * giving the symmetric hash returned by Board.getCanonicalKey().
+ * The keys are generated from a fixed seed, so hashes are the same in every process,
+ * and can be stored in files such as game indexes and opening books.
+ * **/
+public final class Zobrist{
+
+  /**The seed for the keys. Changing it invalidates any stored hashes.**/
+  private static final long SEED = 0x3C4E55_7A0B1157L;
+  /**Keys indexed by ((colour*6)+type)*96 + position**/
+  private static final long[] PIECES = new long[3*6*96];
+  /**Keys for the player to move**/
+  private static final long[] TURNS = new long[3];
+
+  static{
+    SplittableRandom random = new SplittableRandom(SEED);
+    for(int i = 0; i<PIECES.length; i++) PIECES[i] = random.nextLong();
+    for(int i = 0; i<TURNS.length; i++) TURNS[i] = random.nextLong();
+  }
+
+  private Zobrist(){}
+
+  /**
+   * @param colour the colour of the piece.
+   * @param type the type of the piece.
+   * @param position the square the piece is on.
+   * @return the key for a piece of the given colour and type on the given square.
+   * **/
+  public static long piece(Colour colour, PieceType type, Position position){
+    return PIECES[(colour.ordinal()*6+type.ordinal())*96+position.ordinal()];
+  }
+
+  /**
+   * @param piece the piece, which may be null.
+   * @param position the square the piece is on.
+   * @return the key for the piece on the given square, or 0 if there is no piece.
+   * **/
+  public static long piece(Piece piece, Position position){
+    return piece==null?0L:piece(piece.getColour(), piece.getType(), position);
+  }
+
+  /**
+   * @param piece the piece, which may be null.
+   * @param position the square the piece is on.
+   * @param rotation the number of places to rotate the colours, as in Symmetry.rotate.
+   * @return the key for the rotated piece on the rotated square, or 0 if there is no piece.
+   * **/
+  public static long piece(Piece piece, Position position, int rotation){
+    if(piece==null) return 0L;
+    int colour = (piece.getColour().ordinal()+rotation)%3;
+    return PIECES[(colour*6+piece.getType().ordinal())*96+(position.ordinal()+32*rotation)%96];
+  }
+
+  /**
+   * @param code a piece code, see BoardCodec, or 0 for an empty square.
+   * @param position the ordinal of the square.
+   * @return the key for the coded piece on the square, or 0 if there is no piece.
+   * **/
+  public static long code(int code, int position){
+    return code==0?0L:PIECES[(code-1)*96+position];
+  }
+
+  /**@return the key for the given player having the move**/
+  public static long turn(Colour colour){
+    return TURNS[colour.ordinal()];
+  }
+
+  /**@return the key for the given player having the move, after rotating the colours**/
+  public static long turn(Colour colour, int rotation){
+    return TURNS[(colour.ordinal()+rotation)%3];
+  }
+
+  /**
+   * Computes the hash of a board from scratch. 
+   * This is the same as board.getHashKey(), but much slower.
+   * @param board the board to hash.
+   * @return the hash of the pieces on the board and whose turn it is.
+   * **/
+  public static long hash(Board board){
+    long hash = turn(board.getTurn());
+    for(Position p: Position.values()) hash^=piece(board.getPiece(p), p);
+    return hash;
+  }
+
+  /**
+   * Computes the hash of a board with its colours rotated, from scratch.
+   * This is the same as the hash of Symmetry.rotate(board, rotation), without creating the rotated board.
+   * @param board the board to hash.
+   * @param rotation the number of places to rotate the colours.
+   * @return the hash of the rotated board.
+   * **/
+  public static long hash(Board board, int rotation){
+    long hash = turn(board.getTurn(), rotation);
+    for(Position p: Position.values()) hash^=piece(board.getPiece(p), p, rotation);
+    return hash;
+  }
+}
@@ -0,0 +1,356 @@
+package threeChess.archive;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+import threeChess.*;
+
+/**
+ * An indexed database over a file of game records written by GameWriter.
+ * The games file is memory mapped, and a secondary index maps the hash of every position
+ * reached in every game (see Board.getHashKey()) to the game and ply where it occurred,
+ * along with the result of that game.
+ * Looking up a position is a binary search of the memory mapped index, so queries such as
+ * "which games reached this position, and how did they end" do not need to replay any games.
+ * <p>
+ * The index is stored next to the games file, with the extension .pidx.
+ * Games appended to the games file are added to the index by calling update(),
+ * which only replays the new games, in parallel, and merges them into the existing index.
+ * Queries may run on other threads during an update: each sees the index as it was before or after a merge.
+ * **/
+public class GameDatabase implements Closeable{
+
+  private static final int INDEX_MAGIC = 0x33434958;//"3CIX"
+  private static final int INDEX_VERSION = 1;
+  private static final int HEADER = 32;
+  private static final int ENTRY = 16;
+  /**The number of new index entries held in memory before merging them into the index**/
+  private static final int MAX_PENDING = 1<<25;
+  /**The longest run of bytes read from a mapped record**/
+  private static final int RECORD_OVERLAP = GameWriter.MAX_PAYLOAD+12;
+
+  private final File gamesFile;
+  private final File indexFile;
+  /**The loaded index, replaced as a whole by update, so a query reads one consistent index**/
+  private volatile Snapshot state = new Snapshot(null, null, new long[0], 0, 0, HEADER);
+
+  /**
+   * A loaded index and the part of the games file it covers.
+   * **/
+  private static class Snapshot{
+    /**The indexed part of the games file**/
+    final MappedSegments games;
+    /**The index file**/
+    final MappedSegments index;
+    /**The offset of each indexed game in the games file**/
+    final long[] offsets;
+    /**The number of bytes of the games file that have been indexed**/
+    final long scanned;
+    /**The number of (hash, game, ply) entries in the index**/
+    final long entries;
+    /**The offset of the first entry in the index file**/
+    final long entryStart;
+
+    Snapshot(MappedSegments games, MappedSegments index, long[] offsets, long scanned, long entries, long entryStart){
+      this.games = games; this.index = index; this.offsets = offsets;
+      this.scanned = scanned; this.entries = entries; this.entryStart = entryStart;
+    }
+
+    /**@return the hash of the entry at the given position in the index**/
+    long hash(long i){return index.getLong(entryStart+i*ENTRY);}
+
+    /**@return the packed game id, ply and results of the entry at the given position in the index**/
+    long payload(long i){return index.getLong(entryStart+i*ENTRY+8);}
+
+    /**@return the position of the first entry with a hash not less than the given hash**/
+    long lowerBound(long hash){
+      long lo = 0, hi = entries;
+      while(lo<hi){
+        long mid = (lo+hi)>>>1;
+        if(hash(mid)<hash) lo = mid+1;
+        else hi = mid;
+      }
+      return lo;
+    }
+  }
+
+  /**
+   * A game and ply at which a position occurred.
+   * **/
+  public static class Occurrence{
+    private final int game;
+    private final int ply;
+    private final int results;
+
+    private Occurrence(long payload){
+      game = (int) (payload>>>32);
+      ply = (int) (payload>>>16) & 0xFFFF;
+      results = (int) payload & 0xFFFF;
+    }
+
+    /**@return the id of the game, for GameDatabase.getGame**/
+    public int getGame(){return game;}
+
+    /**@return the number of moves made before the position was reached**/
+    public int getPly(){return ply;}
+
+    /**@return the score the given colour received in the game: -2 for an illegal move, -1 for a loss, 0 for a draw and +1 for a win**/
+    public int getResult(Colour colour){return ((results>>(2*colour.ordinal())) & 3)-2;}
+
+    /**@return a String representation of the occurrence**/
+    public String toString(){return "game:"+game+" ply:"+ply;}
+  }
+
+  /**
+   * Opens the database for a games file, loading its index if there is one.
+   * Call update() to index games that have not yet been indexed.
+   * @param gamesFile a file of records written by GameWriter.
+   * @throws IOException if the index exists but cannot be read.
+   * **/
+  public GameDatabase(File gamesFile) throws IOException{
+    this.gamesFile = gamesFile;
+    this.indexFile = new File(gamesFile.getPath()+".pidx");
+    if(indexFile.exists()) load();
+  }
+
+  /**Maps the index file and the part of the games file it covers, and makes it the current index.**/
+  private void load() throws IOException{
+    long scanned, entries;
+    long[] offsets;
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))){
+      if(in.readInt()!=INDEX_MAGIC || in.readInt()!=INDEX_VERSION) throw new IOException("Not a game index: "+indexFile);
+      scanned = in.readLong();
+      int count = (int) in.readLong();
+      entries = in.readLong();
+      offsets = new long[count];
+      for(int i = 0; i<count; i++) offsets[i] = in.readLong();
+    }
+    long entryStart = align(HEADER+8L*offsets.length);
+    MappedSegments index = new MappedSegments(indexFile, entryStart+entries*ENTRY, ENTRY);
+    MappedSegments games = new MappedSegments(gamesFile, scanned, RECORD_OVERLAP);
+    state = new Snapshot(games, index, offsets, scanned, entries, entryStart);
+  }
+
+  /**@return the offset rounded up to a whole number of entries**/
+  private static long align(long offset){
+    return (offset+ENTRY-1)/ENTRY*ENTRY;
+  }
+
+  /**@return the number of indexed games**/
+  public int getGameCount(){
+    return state.offsets.length;
+  }
+
+  /**
+   * Reads an indexed game.
+   * @param id the id of the game, between 0 and getGameCount()-1.
+   * @return the game record.
+   * @throws IOException if the record is corrupt.
+   * **/
+  public GameRecord getGame(int id) throws IOException{
+    Snapshot s = state;
+    long offset = s.offsets[id];
+    int length = s.games.getInt(offset+4);
+    GameRecord game = GameReader.decode(s.games.slice(offset+8, length));
+    if(game==null) throw new IOException("Corrupt game record at "+offset);
+    return game;
+  }
+
+  /**
+   * Finds every occurrence of a position in the indexed games.
+   * @param hash the hash of the position, as returned by Board.getHashKey().
+   * @return the games and plies where the position occurred, in no particular order.
+   * **/
+  public List<Occurrence> find(long hash){
+    Snapshot s = state;
+    List<Occurrence> found = new ArrayList<>();
+    for(long i = s.lowerBound(hash); i<s.entries && s.hash(i)==hash; i++)
+      found.add(new Occurrence(s.payload(i)));
+    return found;
+  }
+
+  /**
+   * Finds every occurrence of a board position in the indexed games.
+   * @param board the position to look for.
+   * @return the games and plies where the position occurred, in no particular order.
+   * **/
+  public List<Occurrence> find(Board board){
+    return find(board.getHashKey());
+  }
+
+  /**
+   * Summarises the results of the games in which a position occurred.
+   * Games are counted once for each time they reached the position.
+   * @param hash the hash of the position, as returned by Board.getHashKey().
+   * @return an array indexed by colour and then score+2, of the number of games in which
+   * that colour received that score, (-2 for an illegal move, -1 for a loss, 0 for a draw and +1 for a win).
+   * **/
+  public int[][] getResults(long hash){
+    Snapshot s = state;
+    int[][] counts = new int[3][4];
+    for(long i = s.lowerBound(hash); i<s.entries && s.hash(i)==hash; i++){
+      int results = (int) s.payload(i);
+      for(int c = 0; c<3; c++) counts[c][(results>>(2*c)) & 3]++;
+    }
+    return counts;
+  }
+
+  /**
+   * Indexes any games appended to the games file since the last update.
+   * New games are replayed in parallel, and their positions merged into the index file.
+   * A record that is still being written is left for the next update.
+   * @return the number of games added to the index.
+   * @throws IOException if the games file cannot be read or the index cannot be written.
+   * **/
+  public synchronized int update() throws IOException{
+    long scanned = state.scanned;
+    if(!gamesFile.exists() || gamesFile.length()<=scanned) return 0;
+    int added = 0;
+    List<GameRecord> batch = new ArrayList<>();
+    List<Long> batchOffsets = new ArrayList<>();
+    long pending = 0;
+    try(GameReader reader = new GameReader(gamesFile, scanned, Long.MAX_VALUE)){
+      long end = scanned;
+      GameRecord game;
+      while((game = reader.next())!=null){
+        batch.add(game);
+        batchOffsets.add(reader.getRecordOffset());
+        end = reader.getRecordEnd();
+        pending+=game.getMoveCount()+1;
+        if(pending>=MAX_PENDING){
+          added+=merge(batch, batchOffsets, end);
+          batch.clear(); batchOffsets.clear(); pending = 0;
+        }
+      }
+      if(!batch.isEmpty()) added+=merge(batch, batchOffsets, end);
+    }
+    return added;
+  }
+
+  /**
+   * Replays a batch of games, and writes a new index containing the existing entries and the new ones.
+   * @return the number of games in the batch.
+   * **/
+  private int merge(List<GameRecord> batch, List<Long> batchOffsets, long end) throws IOException{
+    Snapshot s = state;
+    long[] offsets = s.offsets;
+    long entries = s.entries;
+    int first = offsets.length;
+    long[][] perGame = IntStream.range(0, batch.size()).parallel()
+      .mapToObj(i -> positions(batch.get(i), first+i)).toArray(long[][]::new);
+    int total = 0;
+    for(long[] p: perGame) total+=p.length;
+    long[] added = new long[total];//interleaved hash, payload pairs
+    int k = 0;
+    for(long[] p: perGame){System.arraycopy(p, 0, added, k, p.length); k+=p.length;}
+    ForkJoinPool.commonPool().invoke(new PairSort(added, 0, added.length/2));
+
+    long[] newOffsets = Arrays.copyOf(offsets, first+batch.size());
+    for(int i = 0; i<batch.size(); i++) newOffsets[first+i] = batchOffsets.get(i);
+    long newEntries = entries+added.length/2;
+    File tmp = new File(indexFile.getPath()+".tmp");
+    try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16))){
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(INDEX_VERSION);
+      out.writeLong(end);
+      out.writeLong(newOffsets.length);
+      out.writeLong(newEntries);
+      for(long offset: newOffsets) out.writeLong(offset);
+      for(long pad = HEADER+8L*newOffsets.length; pad<align(HEADER+8L*newOffsets.length); pad++) out.writeByte(0);
+      long i = 0; int j = 0;
+      while(i<entries || j<added.length){//merge the sorted old and new entries
+        long oldHash = i<entries?s.hash(i):0;
+        if(j>=added.length || (i<entries && oldHash<=added[j])){
+          out.writeLong(oldHash);
+          out.writeLong(s.payload(i));
+          i++;
+        }else{
+          out.writeLong(added[j]);
+          out.writeLong(added[j+1]);
+          j+=2;
+        }
+      }
+    }
+    Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    load();
+    return batch.size();
+  }
+
+  /**
+   * Replays a game, recording the hash of every position reached.
+   * @return interleaved pairs of position hash and packed game id, ply and results.
+   * **/
+  private static long[] positions(GameRecord game, int id){
+    int results = 0;
+    for(Colour c: Colour.values()) results|=(Math.max(-2, Math.min(1, game.getResult(c)))+2)<<(2*c.ordinal());
+    long base = (long) id<<32 | results;
+    int plies = Math.min(game.getMoveCount(), 0xFFFF);
+    long[] entries = new long[2*(plies+1)];
+    Board board = new CheatBoard();//the moves were legal when played, so don't check them again.
+    entries[0] = board.getHashKey();
+    entries[1] = base;
+    for(int ply = 1; ply<=plies; ply++){
+      int move = game.getMove(ply-1);
+      try{board.move(Moves.start(move), Moves.end(move));}
+      catch(ImpossiblePositionException e){}//not thrown by a CheatBoard
+      entries[2*ply] = board.getHashKey();
+      entries[2*ply+1] = base | (long) ply<<16;
+    }
+    return entries;
+  }
+
+  /**
+   * Sorts interleaved (hash, payload) pairs by hash, splitting large ranges between threads.
+   * **/
+  @SuppressWarnings("serial")
+  private static class PairSort extends RecursiveAction{
+    private static final int SERIAL = 1<<13;
+    private final long[] a;
+    private final int lo, hi;//pair indices, inclusive and exclusive
+
+    PairSort(long[] a, int lo, int hi){this.a = a; this.lo = lo; this.hi = hi;}
+
+    protected void compute(){
+      if(hi-lo<=SERIAL){sort(lo, hi); return;}
+      int p = partition(lo, hi);
+      invokeAll(new PairSort(a, lo, p), new PairSort(a, p, hi));
+    }
+
+    private void sort(int lo, int hi){
+      while(hi-lo>16){
+        int p = partition(lo, hi);
+        if(p-lo<hi-p){sort(lo, p); lo = p;}
+        else{sort(p, hi); hi = p;}
+      }
+      for(int i = lo+1; i<hi; i++)//insertion sort the small ranges
+        for(int j = i; j>lo && a[2*j]<a[2*j-2]; j--) swap(j, j-1);
+    }
+
+    /**Hoare partition around the middle element. @return a split point strictly between lo and hi**/
+    private int partition(int lo, int hi){
+      long pivot = a[2*((lo+hi)>>>1)];
+      int i = lo-1, j = hi;
+      while(true){
+        do i++; while(a[2*i]<pivot);
+        do j--; while(a[2*j]>pivot);
+        if(i>=j) return j+1;
+        swap(i, j);
+      }
+    }
+
+    private void swap(int i, int j){
+      long h = a[2*i], p = a[2*i+1];
+      a[2*i] = a[2*j]; a[2*i+1] = a[2*j+1];
+      a[2*j] = h; a[2*j+1] = p;
+    }
+  }
+
+  /**Releases the database. The mapped files are unmapped when garbage collected.**/
+  public void close(){
+    state = new Snapshot(null, null, new long[0], 0, 0, HEADER);
+  }
+}
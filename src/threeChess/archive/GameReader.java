@@ -0,0 +1,197 @@
+package threeChess.archive;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Streams games from the binary format written by GameWriter.
+ * Games are decoded one at a time, so arbitrarily large files can be read in constant memory.
+ * A reader can be restricted to a byte range of a file, for splitting a file between workers:
+ * it reads every record that starts in the range, and no others, 
+ * so a set of readers over adjacent ranges reads each record exactly once.
+ * Bytes that are not part of a valid record are skipped.
+ * **/
+public class GameReader implements Closeable, Iterable<GameRecord>{
+
+  private final DataInputStream in;
+  private final long end;
+  /**The offset of the next unread byte**/
+  private long offset;
+  /**The offset of the last record returned by next**/
+  private long recordOffset = -1;
+  /**The offset just past the end of the last record returned by next**/
+  private long recordEnd = -1;
+  private final CRC32 crc = new CRC32();
+  private byte[] buffer = new byte[1024];
+
+  /**
+   * Creates a reader over a whole stream.
+   * @param in the stream to read.
+   * **/
+  public GameReader(InputStream in){
+    this.in = new DataInputStream(in instanceof BufferedInputStream? in: new BufferedInputStream(in, 1<<16));
+    this.end = Long.MAX_VALUE;
+  }
+
+  /**
+   * Creates a reader over a whole file.
+   * @param file the file to read.
+   * @throws IOException if the file cannot be opened.
+   * **/
+  public GameReader(File file) throws IOException{
+    this(new FileInputStream(file));
+  }
+
+  /**
+   * Creates a reader for the records starting between two offsets of a file.
+   * @param file the file to read.
+   * @param start the first offset of the split (inclusive).
+   * @param end the last offset of the split (exclusive).
+   * @throws IOException if the file cannot be opened.
+   * **/
+  public GameReader(File file, long start, long end) throws IOException{
+    FileInputStream fin = new FileInputStream(file);
+    fin.getChannel().position(start);
+    this.in = new DataInputStream(new BufferedInputStream(fin, 1<<16));
+    this.offset = start;
+    this.end = end;
+  }
+
+  /**
+   * Reads the next valid record.
+   * @return the next game, or null if there are no more games in the stream or split.
+   * @throws IOException if the stream cannot be read.
+   * **/
+  public GameRecord next() throws IOException{
+    int window = 0;//the last four bytes read, to find the marker
+    int seen = 0;
+    while(true){
+      if(seen>=4 && window==GameWriter.MAGIC){
+        long start = offset-4;
+        if(start>=end) return null;
+        in.mark(GameWriter.MAX_PAYLOAD+8);
+        GameRecord game = readFramed();
+        if(game!=null){
+          recordOffset = start;
+          recordEnd = offset;
+          return game;
+        }
+        in.reset();//not a record after all, keep scanning from after the marker.
+        window = 0; seen = 0;
+      }
+      int b = in.read();
+      if(b<0) return null;
+      offset++; seen++;
+      window = window<<8 | b;
+    }
+  }
+
+  /**@return the offset in the file of the last record returned by next, or -1 if none**/
+  public long getRecordOffset(){
+    return recordOffset;
+  }
+
+  /**@return the offset in the file just past the end of the last record returned by next, or -1 if none**/
+  public long getRecordEnd(){
+    return recordEnd;
+  }
+
+  /** Reads the length, payload and checksum following a marker, or returns null if they are invalid. **/
+  private GameRecord readFramed() throws IOException{
+    try{
+      int length = in.readInt();
+      if(length<0 || length>GameWriter.MAX_PAYLOAD) return null;
+      if(buffer.length<length) buffer = new byte[Math.max(length, 2*buffer.length)];
+      in.readFully(buffer, 0, length);
+      int checksum = in.readInt();
+      crc.reset();
+      crc.update(buffer, 0, length);
+      if((int) crc.getValue()!=checksum) return null;
+      GameRecord game = decode(ByteBuffer.wrap(buffer, 0, length));
+      if(game!=null) offset+=length+8;
+      return game;
+    }catch(EOFException e){return null;}
+  }
+
+  /**
+   * Decodes the payload of a record. 
+   * @param payload a buffer positioned at the start of the payload. Its position is advanced past the payload.
+   * @return the decoded game, or null if the payload is malformed or an unknown version.
+   * **/
+  public static GameRecord decode(ByteBuffer payload){
+    try{
+      if(payload.get()!=GameWriter.VERSION) return null;
+      int flags = payload.get();
+      long seed = payload.getLong();
+      int timeLimit = payload.getInt();
+      String[] agents = new String[3];
+      for(int i = 0; i<3; i++) agents[i] = readUTF(payload);
+      int[] result = new int[3];
+      for(int i = 0; i<3; i++) result[i] = payload.get();
+      int count = readVarint(payload);
+      if(count<0 || 2*count>payload.remaining()) return null;
+      short[] moves = new short[count];
+      payload.asShortBuffer().get(moves);
+      payload.position(payload.position()+2*count);
+      int[] times = null;
+      if((flags & GameWriter.TIMES_FLAG)!=0){
+        times = new int[count];
+        for(int i = 0; i<count; i++) times[i] = readVarint(payload);
+      }
+      return new GameRecord(agents, seed, timeLimit, result, moves, times);
+    }catch(BufferUnderflowException | IllegalArgumentException | IOException e){
+      return null;
+    }
+  }
+
+  /**Reads a String written by DataOutput.writeUTF.**/
+  private static String readUTF(ByteBuffer buffer) throws IOException{
+    int length = buffer.getShort() & 0xFFFF;
+    if(length>buffer.remaining()) throw new BufferUnderflowException();
+    byte[] bytes = new byte[length+2];
+    bytes[0] = (byte)(length>>8); bytes[1] = (byte) length;
+    buffer.get(bytes, 2, length);
+    return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+  }
+
+  /**Reads an unsigned int written by GameWriter.writeVarint.**/
+  static int readVarint(ByteBuffer buffer){
+    int value = 0;
+    for(int shift = 0; shift<35; shift+=7){
+      int b = buffer.get();
+      value |= (b & 0x7F)<<shift;
+      if((b & 0x80)==0) return value;
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  /**
+   * Iterates over the remaining games. 
+   * IOExceptions while reading are rethrown as UncheckedIOExceptions.
+   * **/
+  public Iterator<GameRecord> iterator(){
+    return new Iterator<GameRecord>(){
+      private GameRecord next = advance();
+      private GameRecord advance(){
+        try{return GameReader.this.next();}
+        catch(IOException e){throw new UncheckedIOException(e);}
+      }
+      public boolean hasNext(){return next!=null;}
+      public GameRecord next(){
+        if(next==null) throw new NoSuchElementException();
+        GameRecord game = next;
+        next = advance();
+        return game;
+      }
+    };
+  }
+
+  /**Closes the underlying stream.**/
+  public void close() throws IOException{
+    in.close();
+  }
+}
@@ -0,0 +1,99 @@
+package threeChess.archive;
+
+import threeChess.*;
+
+/**
+ * A compact record of a completed game: the agents, the seed and time limit it was played with,
+ * the result, and the moves played, packed as two bytes each (see Moves).
+ * Per move times are optional.
+ * Records can be replayed into a Board, but nothing else about them requires one.
+ * **/
+public class GameRecord{
+
+  /**The names of the blue, green and red agents**/
+  private final String[] agents;
+  /**The random seed the game was played with, or 0 if unknown**/
+  private final long seed;
+  /**The time limit of the game in seconds, or 0 for untimed games**/
+  private final int timeLimit;
+  /**The scores for blue, green and red, as returned by ThreeChess.play**/
+  private final int[] result;
+  /**The moves of the game, packed by Moves.pack**/
+  private final short[] moves;
+  /**The milliseconds taken for each move, or null if not recorded**/
+  private final int[] times;
+
+  /**
+   * Creates a game record.
+   * @param agents the names of the blue, green and red agents.
+   * @param seed the random seed the game was played with, or 0 if unknown.
+   * @param timeLimit the time limit in seconds, or 0 for untimed games.
+   * @param result the scores for blue, green and red.
+   * @param moves the moves of the game, packed by Moves.pack.
+   * @param times the milliseconds taken for each move, or null if not recorded.
+   * **/
+  public GameRecord(String[] agents, long seed, int timeLimit, int[] result, short[] moves, int[] times){
+    if(agents.length!=3 || result.length!=3) throw new IllegalArgumentException("Records are for three player games.");
+    if(times!=null && times.length!=moves.length) throw new IllegalArgumentException("Need one time per move.");
+    this.agents = agents; this.seed = seed; this.timeLimit = timeLimit;
+    this.result = result; this.moves = moves; this.times = times;
+  }
+
+  /**
+   * Creates a record from the move history of a finished game.
+   * @param board the board at the end of the game.
+   * @param agents the names of the blue, green and red agents.
+   * @param seed the random seed the game was played with, or 0 if unknown.
+   * @param timeLimit the time limit in seconds, or 0 for untimed games.
+   * @param result the scores for blue, green and red.
+   * @return a record of the game, without move times.
+   * **/
+  public static GameRecord of(Board board, String[] agents, long seed, int timeLimit, int[] result){
+    short[] moves = new short[board.getMoveCount()];
+    for(int i = 0; i<moves.length; i++) moves[i] = (short) board.getPackedMove(i);
+    return new GameRecord(agents.clone(), seed, timeLimit, result.clone(), moves, null);
+  }
+
+  /**@return the name of the agent playing the given colour**/
+  public String getAgent(Colour colour){return agents[colour.ordinal()];}
+
+  /**@return the random seed the game was played with, or 0 if unknown**/
+  public long getSeed(){return seed;}
+
+  /**@return the time limit of the game in seconds, or 0 if untimed**/
+  public int getTimeLimit(){return timeLimit;}
+
+  /**@return the score of the given colour: -2 for an illegal move, -1 for a loss, 0 for a draw and +1 for a win**/
+  public int getResult(Colour colour){return result[colour.ordinal()];}
+
+  /**@return the number of moves in the game**/
+  public int getMoveCount(){return moves.length;}
+
+  /**@return the move at the given index (starting from 0), packed by Moves.pack**/
+  public int getMove(int index){return moves[index] & 0xFFFF;}
+
+  /**@return whether move times were recorded**/
+  public boolean hasTimes(){return times!=null;}
+
+  /**@return the milliseconds taken for the move at the given index, or 0 if not recorded**/
+  public int getTime(int index){return times==null?0:times[index];}
+
+  /**
+   * Replays the first plies of the game.
+   * Move times are only charged in timed games, as an untimed game is played on a 1 ms clock.
+   * @param plies the number of moves to replay.
+   * @return the board after the given number of moves.
+   * @throws ImpossiblePositionException if a recorded move is illegal.
+   * **/
+  public Board replay(int plies) throws ImpossiblePositionException{
+    Board board = new Board(timeLimit>0?timeLimit*1000:1);
+    for(int i = 0; i<plies; i++) board.move(Moves.start(getMove(i)), Moves.end(getMove(i)), timeLimit>0?getTime(i):0);
+    return board;
+  }
+
+  //package access for GameWriter
+  String[] agents(){return agents;}
+  int[] result(){return result;}
+  short[] moves(){return moves;}
+  int[] times(){return times;}
+}
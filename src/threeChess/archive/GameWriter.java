@@ -0,0 +1,116 @@
+package threeChess.archive;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Writes games in the compact binary game record format.
+ * Files are append only: each record is self contained and framed as
+ * <pre>
+ * int    MAGIC
+ * int    payload length
+ * byte[] payload
+ * int    CRC32 of the payload
+ * </pre>
+ * so a reader can start at any offset, find the next record by scanning for MAGIC,
+ * and confirm it with the length and checksum. This makes files splittable between parallel readers.
+ * The payload is
+ * <pre>
+ * byte   version
+ * byte   flags (bit 0 set if move times are present)
+ * long   seed
+ * int    time limit (seconds)
+ * 3 x    agent name (modified UTF-8, as DataOutput.writeUTF)
+ * 3 x    signed byte result (blue, green, red)
+ * varint number of moves
+ * 2 x    byte per move (start ordinal, end ordinal)
+ * varint milliseconds per move, if flagged
+ * </pre>
+ * **/
+public class GameWriter implements Closeable, Flushable{
+
+  /**Marks the start of every record**/
+  public static final int MAGIC = 0x33434752;//"3CGR"
+  /**The current payload version**/
+  public static final int VERSION = 1;
+  /**Flag set when move times are included**/
+  static final int TIMES_FLAG = 1;
+  /**The largest payload accepted, to bound the search for a record**/
+  public static final int MAX_PAYLOAD = 1<<20;
+
+  private final DataOutputStream out;
+  private final ByteArrayOutputStream payload = new ByteArrayOutputStream(1024);
+  private final DataOutputStream payloadOut = new DataOutputStream(payload);
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * Creates a writer that appends to the given stream.
+   * @param out the stream to write records to.
+   * **/
+  public GameWriter(OutputStream out){
+    this.out = new DataOutputStream(out instanceof BufferedOutputStream? out: new BufferedOutputStream(out, 1<<16));
+  }
+
+  /**
+   * Creates a writer that appends records to a file, creating it if necessary.
+   * @param file the file to append to.
+   * @throws IOException if the file cannot be opened.
+   * **/
+  public GameWriter(File file) throws IOException{
+    this(new FileOutputStream(file, true));
+  }
+
+  /**
+   * Appends a game to the output.
+   * @param game the game to write.
+   * @throws IOException if the game cannot be written.
+   * **/
+  public void write(GameRecord game) throws IOException{
+    payload.reset();
+    encode(game, payloadOut);
+    if(payload.size()>MAX_PAYLOAD) throw new IOException("Game record too long: "+payload.size()+" bytes");
+    byte[] bytes = payload.toByteArray();
+    crc.reset();
+    crc.update(bytes, 0, bytes.length);
+    out.writeInt(MAGIC);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    out.writeInt((int) crc.getValue());
+  }
+
+  /**Encodes the payload of a record.**/
+  private static void encode(GameRecord game, DataOutputStream out) throws IOException{
+    short[] moves = game.moves();
+    int[] times = game.times();
+    out.writeByte(VERSION);
+    out.writeByte(times!=null?TIMES_FLAG:0);
+    out.writeLong(game.getSeed());
+    out.writeInt(game.getTimeLimit());
+    for(String agent: game.agents()) out.writeUTF(agent);
+    for(int r: game.result()) out.writeByte(r);
+    writeVarint(out, moves.length);
+    for(short move: moves) out.writeShort(move);
+    if(times!=null)
+      for(int t: times) writeVarint(out, Math.max(t,0));
+  }
+
+  /**Writes an unsigned int in 7 bit groups, least significant first.**/
+  static void writeVarint(DataOutput out, int value) throws IOException{
+    while((value & ~0x7F)!=0){
+      out.writeByte((value & 0x7F) | 0x80);
+      value>>>=7;
+    }
+    out.writeByte(value);
+  }
+
+  /**Flushes written records to the underlying stream.**/
+  public void flush() throws IOException{
+    out.flush();
+  }
+
+  /**Flushes and closes the underlying stream.**/
+  public void close() throws IOException{
+    out.close();
+  }
+}
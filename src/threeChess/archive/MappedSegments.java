@@ -0,0 +1,63 @@
+package threeChess.archive;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a file that may be larger than a single MappedByteBuffer.
+ * The file is mapped in overlapping segments, so any run of up to overlap bytes 
+ * can be read from a single segment without copying.
+ * **/
+class MappedSegments{
+
+  /**The size of each segment, excluding the overlap**/
+  private static final int SEGMENT = 1<<30;
+
+  private final MappedByteBuffer[] segments;
+  private final long length;
+
+  /**
+   * Maps a file, or the first part of it.
+   * @param file the file to map.
+   * @param length the number of bytes to map.
+   * @param overlap the longest run of bytes that must be readable from one segment.
+   * @throws IOException if the file cannot be mapped.
+   * **/
+  MappedSegments(File file, long length, int overlap) throws IOException{
+    this.length = length;
+    try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()){
+      segments = new MappedByteBuffer[(int) ((length+SEGMENT-1)/SEGMENT)];
+      for(int i = 0; i<segments.length; i++){
+        long start = (long) i*SEGMENT;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min((long) SEGMENT+overlap, length-start));
+      }
+    }
+  }
+
+  /**@return the number of bytes mapped**/
+  long length(){return length;}
+
+  /**@return the long at the given offset**/
+  long getLong(long offset){
+    return segments[(int) (offset/SEGMENT)].getLong((int) (offset%SEGMENT));
+  }
+
+  /**@return the int at the given offset**/
+  int getInt(long offset){
+    return segments[(int) (offset/SEGMENT)].getInt((int) (offset%SEGMENT));
+  }
+
+  /**
+   * @param offset the start of the slice.
+   * @param size the size of the slice, at most the overlap.
+   * @return a buffer sharing the mapped bytes from offset to offset+size.
+   * **/
+  ByteBuffer slice(long offset, int size){
+    ByteBuffer buffer = segments[(int) (offset/SEGMENT)].duplicate();
+    int start = (int) (offset%SEGMENT);
+    buffer.limit(start+size).position(start);
+    return buffer.slice();
+  }
+}
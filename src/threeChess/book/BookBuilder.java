@@ -0,0 +1,137 @@
+package threeChess.book;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import threeChess.*;
+import threeChess.archive.*;
+
+/**
+ * Gathers the statistics of opening moves from played games, and writes them as an OpeningBook file.
+ * Games can be added from stored GameRecords, or directly from the final board of a game.
+ * Positions are merged with their rotations (see Symmetry), so a move is counted the same
+ * whichever colour played it.
+ * **/
+public class BookBuilder{
+
+  /**Statistics per canonical position key, then per canonical move: {count, score}**/
+  private final HashMap<Long, HashMap<Integer,int[]>> stats = new HashMap<>();
+  private final int maxPly;
+
+  /**
+   * Creates an empty builder.
+   * @param maxPly the number of moves from the start of each game to include in the book.
+   * **/
+  public BookBuilder(int maxPly){
+    this.maxPly = maxPly;
+  }
+
+  /**
+   * Adds the opening moves of a stored game.
+   * @param game the game record.
+   * **/
+  public void add(GameRecord game){
+    int[] result = new int[3];
+    for(Colour c: Colour.values()) result[c.ordinal()] = game.getResult(c);
+    short[] moves = new short[Math.min(maxPly, game.getMoveCount())];
+    for(int i = 0; i<moves.length; i++) moves[i] = (short) game.getMove(i);
+    add(moves, result);
+  }
+
+  /**
+   * Adds the opening moves of a game that has just been played, such as in self-play.
+   * @param board the board at the end of the game.
+   * @param result the scores for blue, green and red, as returned by ThreeChess.play.
+   * **/
+  public void add(Board board, int[] result){
+    short[] moves = new short[Math.min(maxPly, board.getMoveCount())];
+    for(int i = 0; i<moves.length; i++) moves[i] = (short) board.getPackedMove(i);
+    add(moves, result);
+  }
+
+  /**
+   * Adds every game in a file of game records.
+   * @param games a file written by GameWriter.
+   * @return the number of games added.
+   * @throws IOException if the file cannot be read.
+   * **/
+  public int addAll(File games) throws IOException{
+    int count = 0;
+    try(GameReader reader = new GameReader(games)){
+      GameRecord game;
+      while((game = reader.next())!=null){add(game); count++;}
+    }
+    return count;
+  }
+
+  /**Replays the moves, counting each one in its canonical position.**/
+  private void add(short[] moves, int[] result){
+    Board board = new CheatBoard();//recorded moves were checked when they were played
+    for(short packed: moves){
+      int move = packed & 0xFFFF;
+      int[] entry = stats.computeIfAbsent(board.getCanonicalKey(), k -> new HashMap<>())
+        .computeIfAbsent(Symmetry.rotateMove(move, Symmetry.canonicalRotation(board)), k -> new int[2]);
+      entry[0]++;
+      entry[1]+=Math.max(-1, result[board.getTurn().ordinal()]);//an illegal move penalty counts as a loss
+      try{board.move(Moves.start(move), Moves.end(move));}
+      catch(ImpossiblePositionException e){}//not thrown by a CheatBoard
+    }
+  }
+
+  /**
+   * Writes the book.
+   * @param file the file to write.
+   * @param minCount the number of games a move must have been played in to be included.
+   * @return the number of entries written.
+   * @throws IOException if the file cannot be written.
+   * **/
+  public int write(File file, int minCount) throws IOException{
+    ArrayList<Long> keys = new ArrayList<>(stats.keySet());
+    Collections.sort(keys);
+    int written = 0;
+    File tmp = new File(file.getPath()+".tmp");
+    try(FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1<<16))){
+      out.writeInt(OpeningBook.MAGIC);
+      out.writeInt(OpeningBook.VERSION);
+      out.writeLong(0);//entry count, filled in below
+      for(long key: keys){
+        ArrayList<Map.Entry<Integer,int[]>> moves = new ArrayList<>(stats.get(key).entrySet());
+        moves.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+        for(Map.Entry<Integer,int[]> move: moves){
+          if(move.getValue()[0]<minCount) continue;
+          out.writeLong(key);
+          out.writeInt(move.getKey());
+          out.writeInt(move.getValue()[0]);
+          out.writeInt(move.getValue()[1]);
+          written++;
+        }
+      }
+      out.flush();
+      ByteBuffer count = ByteBuffer.allocate(8).putLong(0, written);
+      while(count.hasRemaining()) channel.write(count, 8+count.position());
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    return written;
+  }
+
+  /**
+   * Builds a book from files of game records.
+   * Usage: BookBuilder book-file max-ply min-count games-file...
+   * **/
+  public static void main(String[] args) throws IOException{
+    if(args.length<4){
+      System.out.println("Usage: java threeChess.book.BookBuilder book-file max-ply min-count games-file...");
+      return;
+    }
+    BookBuilder builder = new BookBuilder(Integer.parseInt(args[1]));
+    int games = 0;
+    for(int i = 3; i<args.length; i++) games+=builder.addAll(new File(args[i]));
+    int entries = builder.write(new File(args[0]), Integer.parseInt(args[2]));
+    System.out.println("Wrote "+entries+" entries from "+games+" games to "+args[0]);
+  }
+}
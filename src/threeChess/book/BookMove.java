@@ -0,0 +1,47 @@
+package threeChess.book;
+
+import threeChess.Position;
+
+/**
+ * A candidate move from the opening book, with the statistics of the games in which it was played.
+ * **/
+public class BookMove{
+
+  private final Position start;
+  private final Position end;
+  private final int count;
+  private final int score;
+
+  BookMove(Position start, Position end, int count, int score){
+    this.start = start; this.end = end; this.count = count; this.score = score;
+  }
+
+  /**@return the start position of the move**/
+  public Position getStart(){return start;}
+
+  /**@return the end position of the move**/
+  public Position getEnd(){return end;}
+
+  /**@return the move as a two element array, as returned by Agent.playMove**/
+  public Position[] getMove(){return new Position[]{start, end};}
+
+  /**@return the number of games in which the move was played**/
+  public int getCount(){return count;}
+
+  /**@return the total score of the player making the move, over the games in which it was played**/
+  public int getScore(){return score;}
+
+  /**@return the average score of the player making the move, between -1 and 1**/
+  public double getAverageScore(){return count==0?0:(double) score/count;}
+
+  /**
+   * The weight of the move, for choosing between book moves at random.
+   * Moves are weighted by how often they were played, scaled by how well they scored,
+   * so a move that always lost has weight 0.
+   * @return the weight of the move.
+   * **/
+  public double getWeight(){return count*(1+getAverageScore())/2;}
+
+  /**@return a String representation of the move and its statistics**/
+  public String toString(){return start+"-"+end+" played:"+count+" avg:"+getAverageScore();}
+}
@@ -0,0 +1,115 @@
+package threeChess.book;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import threeChess.*;
+
+/**
+ * An opening book, read from a file written by BookBuilder.
+ * The file is memory mapped and searched in place, so opening a book takes no time
+ * regardless of its size, and many agent processes using the same book share one copy in the page cache.
+ * Positions are looked up by their canonical key (see Board.getCanonicalKey()),
+ * so a line learnt from one seat is also played from the other two.
+ * <p>
+ * The file is a header
+ * <pre>
+ * int  MAGIC
+ * int  version
+ * long number of entries
+ * </pre>
+ * followed by entries sorted by key, and by count within each key:
+ * <pre>
+ * long canonical key of the position
+ * int  move in the canonical position, packed by Moves.pack
+ * int  number of games the move was played in
+ * int  total score of the player making the move
+ * </pre>
+ * **/
+public class OpeningBook{
+
+  static final int MAGIC = 0x33434B42;//"3CBK"
+  static final int VERSION = 1;
+  static final int HEADER = 16;
+  static final int ENTRY = 20;
+
+  private final MappedByteBuffer buffer;
+  private final int entries;
+
+  /**
+   * Opens a book file.
+   * @param file a book written by BookBuilder.
+   * @throws IOException if the file cannot be mapped or is not a book.
+   * **/
+  public OpeningBook(File file) throws IOException{
+    try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()){
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if(buffer.capacity()<HEADER || buffer.getInt(0)!=MAGIC || buffer.getInt(4)!=VERSION)
+      throw new IOException("Not an opening book: "+file);
+    long count = buffer.getLong(8);
+    if(count<0 || HEADER+count*ENTRY>buffer.capacity()) throw new IOException("Truncated opening book: "+file);
+    entries = (int) count;
+  }
+
+  /**@return the number of (position, move) entries in the book**/
+  public int size(){
+    return entries;
+  }
+
+  /**
+   * Looks up the book moves for a position.
+   * @param board the position.
+   * @return the legal book moves for the position, most played first, or an empty list if it is not in the book.
+   * **/
+  public List<BookMove> lookup(Board board){
+    long key = board.getCanonicalKey();
+    int back = Symmetry.inverse(Symmetry.canonicalRotation(board));
+    List<BookMove> moves = new ArrayList<>();
+    for(int i = lowerBound(key); i<entries && keyAt(i)==key; i++){
+      int offset = HEADER+i*ENTRY;
+      int move = Symmetry.rotateMove(buffer.getInt(offset+8), back);
+      Position start = Moves.start(move), end = Moves.end(move);
+      if(board.isLegalMove(start, end))//guards against hash collisions
+        moves.add(new BookMove(start, end, buffer.getInt(offset+12), buffer.getInt(offset+16)));
+    }
+    return moves;
+  }
+
+  /**
+   * Chooses a book move at random, in proportion to the moves' weights.
+   * @param board the position.
+   * @param random the source of randomness.
+   * @return a book move, or null if the position is not in the book or all its moves have zero weight.
+   * **/
+  public Position[] choose(Board board, Random random){
+    List<BookMove> moves = lookup(board);
+    double total = 0;
+    for(BookMove move: moves) total+=move.getWeight();
+    if(total<=0) return null;
+    double r = random.nextDouble()*total;
+    for(BookMove move: moves){
+      r-=move.getWeight();
+      if(r<0) return move.getMove();
+    }
+    return moves.get(moves.size()-1).getMove();
+  }
+
+  /**@return the key of the entry at the given index**/
+  private long keyAt(int index){
+    return buffer.getLong(HEADER+index*ENTRY);
+  }
+
+  /**@return the index of the first entry with a key not less than the given key**/
+  private int lowerBound(long key){
+    int lo = 0, hi = entries;
+    while(lo<hi){
+      int mid = (lo+hi)>>>1;
+      if(keyAt(mid)<key) lo = mid+1;
+      else hi = mid;
+    }
+    return lo;
+  }
+}
@@ -0,0 +1,188 @@
+package threeChess.eval;
+
+import threeChess.*;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of position evaluations, keyed by Board.getHashKey(), that any number of threads can share.
+ * Games running at the same time, or one after another, meet the same positions again and again,
+ * especially in the opening, so agents can share one cache across games and threads,
+ * for example the process-wide cache returned by shared().
+ * <p>
+ * The cache is a fixed table of buckets of four entries. Access takes no locks:
+ * each entry is a pair of longs, the key xor the value and the value,
+ * so a reader that sees a half written entry finds the pair inconsistent and treats it as a miss.
+ * When a bucket is full, an entry is evicted by the CLOCK policy:
+ * a hit sets the entry's reference bit, and the bucket's hand moves past entries with the bit set,
+ * clearing it, until it finds one without.
+ * <p>
+ * Values are longs. pack and unpack store one int value per colour in a long, in 21 bits each.
+ * **/
+public class EvalCache{
+
+  /**Returned by get when the key is not in the cache**/
+  public static final long MISS = Long.MIN_VALUE;
+  /**The number of bytes used by each entry**/
+  public static final int ENTRY_BYTES = 17;
+  /**The size of the shared cache in megabytes, unless the system property threeChess.evalCache.mb is set**/
+  public static final int DEFAULT_SHARED_MB = 64;
+  private static final int WAYS = 4;
+
+  private static volatile EvalCache shared;
+
+  /**Pairs of longs: the key xor the value, then the value**/
+  private final long[] table;
+  private final byte[] referenced;
+  private final byte[] hands;
+  private final int mask;
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+  /**
+   * Creates a cache.
+   * @param bytes the memory to use. The number of entries is the largest power of two that fits, and at least four.
+   * **/
+  public EvalCache(long bytes){
+    long entries = Math.max(WAYS, Long.highestOneBit(Math.max(1, bytes/ENTRY_BYTES)));
+    if(entries>1<<29) entries = 1<<29;
+    table = new long[2*(int) entries];
+    referenced = new byte[(int) entries];
+    hands = new byte[(int) entries/WAYS];
+    mask = (int) entries/WAYS-1;
+    clear();
+  }
+
+  /**
+   * @return the process-wide cache, created the first time this is called,
+   * with the size given by the system property threeChess.evalCache.mb or DEFAULT_SHARED_MB.
+   * **/
+  public static EvalCache shared(){
+    EvalCache cache = shared;
+    if(cache==null){
+      synchronized(EvalCache.class){
+        if(shared==null) shared = new EvalCache(Long.getLong("threeChess.evalCache.mb", DEFAULT_SHARED_MB)<<20);
+        cache = shared;
+      }
+    }
+    return cache;
+  }
+
+  /**@return the first entry of the key's bucket**/
+  private int bucket(long key){
+    return (int) (key ^ key>>>32) & mask;
+  }
+
+  /**
+   * @param key a position's hash key.
+   * @return the cached value, or MISS.
+   * **/
+  public long get(long key){
+    int first = bucket(key)*WAYS;
+    for(int e = first; e<first+WAYS; e++){
+      long value = table[2*e+1];
+      if((table[2*e]^value)==key && value!=MISS){
+        if(referenced[e]==0) referenced[e] = 1;//avoids writing to a shared cache line on every hit
+        hits.increment();
+        return value;
+      }
+    }
+    misses.increment();
+    return MISS;
+  }
+
+  /**
+   * @param board a board.
+   * @return the cached value for the board's position, or MISS.
+   * **/
+  public long get(Board board){
+    return get(board.getHashKey());
+  }
+
+  /**
+   * Adds or replaces a value.
+   * @param key a position's hash key.
+   * @param value the value, which must not be MISS.
+   * **/
+  public void put(long key, long value){
+    int bucket = bucket(key);
+    int first = bucket*WAYS;
+    int victim = -1;
+    for(int e = first; e<first+WAYS; e++){
+      long stored = table[2*e+1];
+      if(stored==MISS || (table[2*e]^stored)==key){victim = e; break;}//empty, or the same key
+    }
+    if(victim<0){//CLOCK: skip over, and clear, recently referenced entries
+      int hand = hands[bucket];
+      for(int i = 0; i<2*WAYS; i++){
+        int e = first+hand;
+        hand = (hand+1)%WAYS;
+        if(referenced[e]==0 || i>=WAYS){victim = e; break;}
+        referenced[e] = 0;
+      }
+      hands[bucket] = (byte) hand;
+    }
+    table[2*victim+1] = value;
+    table[2*victim] = key^value;
+    referenced[victim] = 0;
+  }
+
+  /**
+   * Adds or replaces the value for a board's position.
+   * @param board a board.
+   * @param value the value, which must not be MISS.
+   * **/
+  public void put(Board board, long value){
+    put(board.getHashKey(), value);
+  }
+
+  /**
+   * Packs a value for each colour into a long that is never MISS.
+   * @param values the values of blue, green and red, each between -2^20 and 2^20-1.
+   * @return the packed values.
+   * **/
+  public static long pack(int[] values){
+    return (values[0]&0x1FFFFFL) | (values[1]&0x1FFFFFL)<<21 | (values[2]&0x1FFFFFL)<<42;
+  }
+
+  /**
+   * @param packed values packed by pack.
+   * @param colour a colour.
+   * @return the colour's value.
+   * **/
+  public static int unpack(long packed, Colour colour){
+    return (int) ((packed<<(43-21*colour.ordinal()))>>43);
+  }
+
+  /**
+   * @param packed values packed by pack.
+   * @param values an array of length 3 for the result.
+   * @return the values of blue, green and red, in the array given.
+   * **/
+  public static int[] unpack(long packed, int[] values){
+    for(Colour c: Colour.values()) values[c.ordinal()] = unpack(packed, c);
+    return values;
+  }
+
+  /**Empties the cache. Entries written by other threads at the same time may survive.**/
+  public void clear(){
+    java.util.Arrays.fill(table, 0L);
+    for(int e = 0; e<referenced.length; e++) table[2*e+1] = MISS;
+    java.util.Arrays.fill(referenced, (byte) 0);
+    hits.reset(); misses.reset();
+  }
+
+  /**@return the number of entries the cache can hold**/
+  public int capacity(){return referenced.length;}
+
+  /**@return the number of hits since the cache was created or cleared**/
+  public long getHits(){return hits.sum();}
+
+  /**@return the number of misses since the cache was created or cleared**/
+  public long getMisses(){return misses.sum();}
+
+  /**@return the fraction of lookups that were hits, or 0 if there have been none**/
+  public double getHitRate(){
+    long h = hits.sum(), m = misses.sum();
+    return h+m==0?0:(double) h/(h+m);
+  }
+}
@@ -0,0 +1,137 @@
+package threeChess.eval;
+
+import threeChess.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * The weights of an efficiently updatable neural network (NNUE) evaluating three player positions.
+ * <p>
+ * The inputs are one feature for each (colour, piece type, position), 3*6*96 = 1728 in all,
+ * seen from the perspective of one player: the board is rotated so that player is Blue (see Symmetry),
+ * so the same weights serve all three seats.
+ * The feature transformer maps the active features to a hidden layer of int16 values, the accumulator,
+ * with one accumulator per player.
+ * A player's value is a weighted sum of the clipped accumulators of that player, the next player and the previous player.
+ * <p>
+ * Weights are stored big-endian in a compact binary file:
+ * the magic number 0x33434E4E, a version, the hidden layer size H,
+ * the output scale, the output bias (ints),
+ * then the feature weights (1728*H shorts, feature by feature),
+ * the hidden biases (H shorts) and the output weights (3*H shorts: own, next and previous player).
+ * **/
+public final class Network{
+
+  /**The number of input features for each perspective**/
+  public static final int FEATURES = 3*6*96;
+  /**Marks a network file**/
+  public static final int MAGIC = 0x33434E4E;
+  /**The version of the file layout**/
+  public static final int VERSION = 1;
+  /**The largest value of a clipped accumulator**/
+  public static final int CLIP = 255;
+
+  final int hidden;
+  final int scale;
+  final int outputBias;
+  /**Feature weights, H per feature**/
+  final short[] features;
+  final short[] bias;
+  /**Output weights for the own, next and previous player's accumulators, H each**/
+  final short[] output;
+
+  /**
+   * Creates a network from its weights.
+   * @param hidden the size of the hidden layer.
+   * @param scale the divisor applied to the output sums.
+   * @param outputBias the bias added to each output sum.
+   * @param features the feature weights, hidden per feature.
+   * @param bias the hidden layer biases.
+   * @param output the output weights, hidden each for the own, next and previous player.
+   * **/
+  public Network(int hidden, int scale, int outputBias, short[] features, short[] bias, short[] output){
+    if(hidden<1 || scale<1) throw new IllegalArgumentException("Hidden size and scale must be positive.");
+    if(features.length!=FEATURES*hidden || bias.length!=hidden || output.length!=3*hidden)
+      throw new IllegalArgumentException("Weight arrays do not match a hidden layer of "+hidden+".");
+    this.hidden = hidden; this.scale = scale; this.outputBias = outputBias;
+    this.features = features; this.bias = bias; this.output = output;
+  }
+
+  /**
+   * Creates a network with small random weights, as a starting point for training.
+   * @param hidden the size of the hidden layer.
+   * @param seed the random seed.
+   * @return the network.
+   * **/
+  public static Network random(int hidden, long seed){
+    Random random = new Random(seed);
+    short[] features = new short[FEATURES*hidden];
+    short[] bias = new short[hidden];
+    short[] output = new short[3*hidden];
+    for(int i = 0; i<features.length; i++) features[i] = (short) (random.nextInt(33)-16);
+    for(int i = 0; i<hidden; i++) bias[i] = (short) random.nextInt(64);
+    for(int i = 0; i<output.length; i++) output[i] = (short) (random.nextInt(65)-32);
+    return new Network(hidden, 64, 0, features, bias, output);
+  }
+
+  /**
+   * Loads a network from a file.
+   * @param file the file to read.
+   * @return the network.
+   * @throws IOException if the file cannot be read or is not a network file.
+   * **/
+  public static Network load(File file) throws IOException{
+    try(FileChannel channel = FileChannel.open(file.toPath())){
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if(map.remaining()<20 || map.getInt()!=MAGIC) throw new IOException(file+" is not a network file.");
+      int version = map.getInt();
+      if(version!=VERSION) throw new IOException("Unsupported network version "+version+".");
+      int hidden = map.getInt();
+      int scale = map.getInt();
+      int outputBias = map.getInt();
+      if(hidden<1 || map.remaining()!=2L*(FEATURES+4)*hidden) throw new IOException(file+" is truncated or corrupt.");
+      short[] features = new short[FEATURES*hidden];
+      short[] bias = new short[hidden];
+      short[] output = new short[3*hidden];
+      map.asShortBuffer().get(features).get(bias).get(output);
+      return new Network(hidden, scale, outputBias, features, bias, output);
+    }
+  }
+
+  /**
+   * Writes the network to a file.
+   * @param file the file to write.
+   * @throws IOException if the file cannot be written.
+   * **/
+  public void write(File file) throws IOException{
+    ByteBuffer buffer = ByteBuffer.allocate(20+2*(FEATURES+4)*hidden);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(hidden).putInt(scale).putInt(outputBias);
+    buffer.asShortBuffer().put(features).put(bias).put(output);
+    try(FileOutputStream out = new FileOutputStream(file)){
+      out.write(buffer.array());
+    }
+  }
+
+  /**
+   * @param perspective the player whose view of the board is used.
+   * @param colour the colour of the piece.
+   * @param type the type of the piece.
+   * @param position the position of the piece.
+   * @return the index of the feature for the piece, seen by the given player.
+   * **/
+  public static int feature(Colour perspective, Colour colour, PieceType type, Position position){
+    int rotation = Symmetry.inverse(perspective.ordinal());
+    int relative = (colour.ordinal()+rotation)%3;
+    return (relative*6+type.ordinal())*96+Symmetry.rotate(position, rotation).ordinal();
+  }
+
+  /**@return the size of the hidden layer**/
+  public int getHiddenSize(){return hidden;}
+
+  /**@return the divisor applied to the output sums**/
+  public int getScale(){return scale;}
+}
@@ -0,0 +1,176 @@
+package threeChess.eval;
+
+import threeChess.*;
+
+/**
+ * Evaluates positions with a Network, keeping its accumulators up to date as moves are made and taken back.
+ * The evaluator holds a stack of accumulators, one entry per ply of a search.
+ * Making a move pushes a copy of the current entry and adds or subtracts the weights of the few features the move changes,
+ * and taking the move back just pops the stack, so no accumulator is ever recomputed from scratch after reset.
+ * <p>
+ * A search would call reset at its root, move before each Board.move, pop after undoing it,
+ * and evaluate at the leaves.
+ * The loops over the hidden layer are plain int16 loops, which the JIT compiles to SIMD instructions.
+ * An evaluator is not thread safe; use one per search thread. The Network can be shared.
+ * **/
+public class NetworkEvaluator{
+
+  private static final Colour[] COLOURS = Colour.values();
+  private static final Position[] POSITIONS = Position.values();
+  /**Feature indices, by perspective, piece code (see BoardCodec) and position**/
+  private static final int[][][] FEATURE = new int[3][19][96];
+  static{
+    for(Colour p: COLOURS)
+      for(Colour c: COLOURS)
+        for(PieceType t: PieceType.values())
+          for(Position pos: POSITIONS)
+            FEATURE[p.ordinal()][BoardCodec.code(c, t)][pos.ordinal()] = Network.feature(p, c, t, pos);
+  }
+
+  private final Network net;
+  private final int hidden;
+  /**The accumulators of blue, green and red, hidden values each, for each ply**/
+  private final short[][] stack;
+  private int depth;
+  /**The clipped accumulators of the top entry, for evaluate**/
+  private final short[] clipped;
+
+  /**
+   * Creates an evaluator.
+   * @param net the network to evaluate with.
+   * @param maxDepth the largest number of moves that can be made after a reset before they are taken back.
+   * **/
+  public NetworkEvaluator(Network net, int maxDepth){
+    this.net = net;
+    this.hidden = net.hidden;
+    stack = new short[maxDepth+1][3*hidden];
+    clipped = new short[3*hidden];
+  }
+
+  /**
+   * Computes the accumulators for a board from scratch, emptying the stack.
+   * @param board the board to evaluate from.
+   * **/
+  public void reset(Board board){
+    depth = 0;
+    short[] acc = stack[0];
+    for(int p = 0; p<3; p++) System.arraycopy(net.bias, 0, acc, p*hidden, hidden);
+    for(Position pos: POSITIONS){
+      Piece piece = board.getPiece(pos);
+      if(piece!=null) apply(BoardCodec.code(piece), pos.ordinal(), 1);
+    }
+  }
+
+  /**Pushes a copy of the current accumulators, so that changes can be taken back with pop.**/
+  public void push(){
+    System.arraycopy(stack[depth], 0, stack[depth+1], 0, 3*hidden);
+    depth++;
+  }
+
+  /**Takes back the changes made since the matching push or move.**/
+  public void pop(){
+    if(depth==0) throw new IllegalStateException("Nothing to pop.");
+    depth--;
+  }
+
+  /**@return the number of entries pushed since the last reset**/
+  public int getDepth(){return depth;}
+
+  /**
+   * Adds a piece to the current accumulators.
+   * @param piece the piece.
+   * @param position where it is placed.
+   * **/
+  public void add(Piece piece, Position position){
+    apply(BoardCodec.code(piece), position.ordinal(), 1);
+  }
+
+  /**
+   * Removes a piece from the current accumulators.
+   * @param piece the piece.
+   * @param position where it is removed from.
+   * **/
+  public void remove(Piece piece, Position position){
+    apply(BoardCodec.code(piece), position.ordinal(), -1);
+  }
+
+  /**
+   * Pushes the accumulators and updates them for a move, following the rules of Board.move:
+   * captures, promotion to Queen and castling.
+   * Call this before the move is made on the board, and pop to take it back.
+   * @param board the board before the move.
+   * @param start the start of a legal move.
+   * @param end the end of the move.
+   * **/
+  public void move(Board board, Position start, Position end){
+    push();
+    Piece mover = board.getPiece(start);
+    Piece taken = board.getPiece(end);
+    Colour colour = mover.getColour();
+    int code = BoardCodec.code(mover);
+    apply(code, start.ordinal(), -1);
+    if(taken!=null) apply(BoardCodec.code(taken), end.ordinal(), -1);
+    if(mover.getType()==PieceType.PAWN && end.getRow()==0 && end.getColour()!=colour)
+      code = BoardCodec.code(colour, PieceType.QUEEN);
+    apply(code, end.ordinal(), 1);
+    if(mover.getType()==PieceType.KING && start.getColumn()==4 && start.getRow()==0
+        && (end.getColumn()==2 || end.getColumn()==6)){//castling moves the rook too
+      Position rookPos = POSITIONS[32*colour.ordinal()+4*(end.getColumn()==2?0:7)];//row 0
+      Position rookEnd = POSITIONS[32*colour.ordinal()+4*(end.getColumn()==2?3:5)];
+      Piece rook = board.getPiece(rookPos);
+      Piece covered = board.getPiece(rookEnd);
+      if(covered!=null) apply(BoardCodec.code(covered), rookEnd.ordinal(), -1);
+      if(rook!=null){
+        apply(BoardCodec.code(rook), rookPos.ordinal(), -1);
+        apply(BoardCodec.code(rook), rookEnd.ordinal(), 1);
+      }
+    }
+  }
+
+  /**
+   * Adds or subtracts the weights of a piece's feature in all three perspectives.
+   * @param code the piece code.
+   * @param position the position ordinal.
+   * @param sign 1 to add, -1 to subtract.
+   * **/
+  private void apply(int code, int position, int sign){
+    short[] acc = stack[depth];
+    short[] w = net.features;
+    for(int p = 0; p<3; p++){
+      int from = FEATURE[p][code][position]*hidden;
+      int to = p*hidden;
+      if(sign>0) for(int j = 0; j<hidden; j++) acc[to+j]+=w[from+j];
+      else for(int j = 0; j<hidden; j++) acc[to+j]-=w[from+j];
+    }
+  }
+
+  /**
+   * Evaluates the current position for every player.
+   * @param values an array of length 3 for the result.
+   * @return the values of blue, green and red, in the array given.
+   * **/
+  public int[] evaluate(int[] values){
+    short[] acc = stack[depth];
+    for(int j = 0; j<3*hidden; j++) clipped[j] = (short) Math.min(Math.max(acc[j], 0), Network.CLIP);
+    int own = 0, next = hidden, prev = 2*hidden;
+    for(int c = 0; c<3; c++){
+      int sum = dot(c, own)+dot((c+1)%3, next)+dot((c+2)%3, prev);
+      values[c] = (sum+net.outputBias)/net.scale;
+    }
+    return values;
+  }
+
+  /**@return the value of the given colour in the current position**/
+  public int evaluate(Colour colour){
+    return evaluate(new int[3])[colour.ordinal()];
+  }
+
+  /**@return the dot product of a player's clipped accumulator with a block of output weights**/
+  private int dot(int player, int weights){
+    short[] w = net.output;
+    int from = player*hidden;
+    int sum = 0;
+    for(int j = 0; j<hidden; j++) sum+=clipped[from+j]*w[weights+j];
+    return sum;
+  }
+}
@@ -0,0 +1,207 @@
+package threeChess.search;
+
+import threeChess.*;
+
+import java.util.SplittableRandom;
+
+/**
+ * Plays many independent games at once, one move of every game per step, for playouts and self play.
+ * Rather than a Board object per game, the games are kept in parallel arrays:
+ * the piece codes (see BoardCodec) of every game's 96 squares in one contiguous array,
+ * and the turn, move count and outcome of each game in arrays of their own.
+ * Each step makes two passes over the batch: one choosing a move for every game still playing,
+ * using MoveGenerator and a Policy, and one applying all the chosen moves.
+ * <p>
+ * Moves follow the rules of Board.move: captures, promotion to Queen and castling,
+ * and a game ends when a King is taken. Games are untimed, so a game can also stop at a move limit, as a draw.
+ * A simulator is not thread safe; give each thread its own.
+ * **/
+public class BatchSimulator{
+
+  /**Chooses a move for one game of a batch.**/
+  public interface Policy{
+    /**
+     * @param squares the piece codes of every game in the batch.
+     * @param offset the index in squares of the game's first position.
+     * @param turn the colour to move.
+     * @param moves the legal moves, packed by Moves.pack.
+     * @param n the number of legal moves, at least one.
+     * @param random a source of randomness.
+     * @return the index of the chosen move.
+     * **/
+    int choose(byte[] squares, int offset, Colour turn, int[] moves, int n, SplittableRandom random);
+  }
+
+  /**Chooses uniformly at random among the legal moves.**/
+  public static final Policy RANDOM = (squares, offset, turn, moves, n, random) -> random.nextInt(n);
+
+  /**Takes a King if possible, and otherwise chooses uniformly at random.**/
+  public static final Policy KING_TAKER = (squares, offset, turn, moves, n, random) -> {
+    for(int i = 0; i<n; i++){
+      int target = squares[offset+(moves[i]&0xFF)];
+      if(target!=0 && (target-1)%6==PieceType.KING.ordinal()) return i;
+    }
+    return random.nextInt(n);
+  };
+
+  private static final int PLAYING = 0, OVER = 1, STOPPED = 2;
+  private static final Colour[] COLOURS = Colour.values();
+  private static final int PAWN = PieceType.PAWN.ordinal(), KING = PieceType.KING.ordinal();
+
+  private final int size;
+  /**The piece code on each square of each game, 96 per game**/
+  private final byte[] squares;
+  private final byte[] turns;
+  private final byte[] status;
+  /**The winner and loser of each finished game, as colour ordinals, or -1**/
+  private final byte[] winners, losers;
+  private final int[] plies;
+  /**The move chosen for each game in the current step, or -1**/
+  private final int[] chosen;
+  private final int[] moves = new int[512];
+
+  /**
+   * Creates a batch of games, all in the initial position.
+   * @param size the number of games.
+   * **/
+  public BatchSimulator(int size){
+    this.size = size;
+    squares = new byte[96*size];
+    turns = new byte[size];
+    status = new byte[size];
+    winners = new byte[size];
+    losers = new byte[size];
+    plies = new int[size];
+    chosen = new int[size];
+    reset(new Board(0));
+  }
+
+  /**
+   * Sets every game in the batch to the position on a board.
+   * @param board the starting position.
+   * **/
+  public void reset(Board board){
+    reset(0, board);
+    for(int g = 1; g<size; g++){
+      System.arraycopy(squares, 0, squares, 96*g, 96);
+      turns[g] = turns[0]; status[g] = status[0];
+      winners[g] = winners[0]; losers[g] = losers[0];
+      plies[g] = 0;
+    }
+  }
+
+  /**
+   * Sets one game in the batch to the position on a board.
+   * @param game the index of the game.
+   * @param board the starting position.
+   * **/
+  public void reset(int game, Board board){
+    byte[] position = MoveGenerator.squares(board, new byte[96]);
+    System.arraycopy(position, 0, squares, 96*game, 96);
+    turns[game] = (byte) board.getTurn().ordinal();
+    status[game] = (byte) (board.gameOver()?OVER:PLAYING);
+    Colour winner = board.getWinner(), loser = board.getLoser();
+    winners[game] = (byte) (winner==null?-1:winner.ordinal());
+    losers[game] = (byte) (loser==null?-1:loser.ordinal());
+    plies[game] = 0;
+  }
+
+  /**
+   * Plays one move in every game still playing.
+   * @param policy chooses the moves.
+   * @param random a source of randomness for the policy.
+   * @return the number of games still playing.
+   * **/
+  public int step(Policy policy, SplittableRandom random){
+    byte[] position = new byte[96];
+    for(int g = 0; g<size; g++){
+      chosen[g] = -1;
+      if(status[g]!=PLAYING) continue;
+      System.arraycopy(squares, 96*g, position, 0, 96);
+      int n = MoveGenerator.generate(position, COLOURS[turns[g]], moves);
+      if(n==0){status[g] = STOPPED; continue;}//a player with no moves; not reachable from real games
+      chosen[g] = moves[policy.choose(squares, 96*g, COLOURS[turns[g]], moves, n, random)];
+    }
+    int playing = 0;
+    for(int g = 0; g<size; g++){
+      if(chosen[g]>=0) apply(g, chosen[g]);
+      if(status[g]==PLAYING) playing++;
+    }
+    return playing;
+  }
+
+  /**
+   * Plays every game until it ends or reaches a move limit.
+   * @param policy chooses the moves.
+   * @param random a source of randomness for the policy.
+   * @param maxPlies the number of moves after which a game is stopped, as a draw.
+   * **/
+  public void run(Policy policy, SplittableRandom random, int maxPlies){
+    for(int ply = 0; ply<maxPlies; ply++)
+      if(step(policy, random)==0) return;
+    for(int g = 0; g<size; g++) if(status[g]==PLAYING) status[g] = STOPPED;
+  }
+
+  /**Makes a move in one game, following the rules of Board.move.**/
+  private void apply(int game, int move){
+    int base = 96*game;
+    int start = move>>>8, end = move&0xFF;
+    int code = squares[base+start];
+    int taken = squares[base+end];
+    int colour = (code-1)/6, type = (code-1)%6;
+    squares[base+start] = 0;
+    if(type==PAWN && end%4==0 && end/32!=colour) code = 1+6*colour+PieceType.QUEEN.ordinal();//promotion on the back rank
+    squares[base+end] = (byte) code;
+    if(type==KING && start%32==16){//row 0, column 4
+      int column = (end%32)/4;
+      if(column==2 || column==6){//castling, so the rook moves too
+        int rookPos = base+32*colour+(column==2?0:28);
+        int rookEnd = base+32*colour+(column==2?12:20);
+        squares[rookEnd] = squares[rookPos];
+        squares[rookPos] = 0;
+      }
+    }
+    if(taken!=0 && (taken-1)%6==KING){
+      status[game] = OVER;
+      winners[game] = (byte) colour;
+      losers[game] = (byte) ((taken-1)/6);
+    }
+    turns[game] = (byte) ((turns[game]+1)%3);
+    plies[game]++;
+  }
+
+  /**
+   * @param game the index of a game.
+   * @param scores an array of length 3 for the result.
+   * @return the scores of blue, green and red: +1 for the winner, -1 for the loser and 0 otherwise.
+   * All are 0 for a game that has not ended or was stopped.
+   * **/
+  public int[] result(int game, int[] scores){
+    scores[0] = scores[1] = scores[2] = 0;
+    if(status[game]==OVER){
+      scores[winners[game]] = 1;
+      scores[losers[game]] = -1;
+    }
+    return scores;
+  }
+
+  /**@return the number of games in the batch**/
+  public int size(){return size;}
+
+  /**@return whether the game has ended with a King being taken**/
+  public boolean isOver(int game){return status[game]==OVER;}
+
+  /**@return whether the game is still being played**/
+  public boolean isPlaying(int game){return status[game]==PLAYING;}
+
+  /**@return the number of moves played in the game since it was reset**/
+  public int getPlies(int game){return plies[game];}
+
+  /**@return the colour to move in the game**/
+  public Colour getTurn(int game){return COLOURS[turns[game]];}
+
+  /**@return the piece at a position in the game, or null if it is empty**/
+  public Piece getPiece(int game, Position position){
+    return BoardCodec.piece(squares[96*game+position.ordinal()]);
+  }
+}
@@ -0,0 +1,325 @@
+package threeChess.search;
+
+import threeChess.*;
+
+import java.util.SplittableRandom;
+
+/**
+ * A depth-first proof-number (df-pn) solver that decides whether a player can force the capture of a King
+ * within a number of moves, however the other two players move.
+ * <p>
+ * The game ends the moment any King is taken, so the question is asked of a two sided game:
+ * the attacker's turns are OR nodes, where one move that wins is enough,
+ * and both opponents' turns are AND nodes, where every move must lose.
+ * The opponents are assumed to work together: an opponent that takes either other King,
+ * including the other opponent's, ends the game without the attacker winning, which disproves the node.
+ * A position is disproved if the attacker cannot take a King within the remaining moves.
+ * <p>
+ * Proof and disproof numbers are kept in a bounded transposition table, keyed by the position,
+ * the attacker and the number of moves remaining, so a table can be reused between calls and between moves of a game.
+ * When the table is full, entries that took the least work to find are replaced.
+ * A search stops when it runs out of its node budget, with the result UNKNOWN,
+ * so agents can call the solver as a cheap check before a regular search.
+ * A solver is not thread safe; give each thread its own.
+ * **/
+public class KingCaptureSolver{
+
+  /**A result of solve: the attacker can force a King capture**/
+  public static final int PROVEN = 1;
+  /**A result of solve: the attacker cannot force a King capture within the moves allowed**/
+  public static final int DISPROVEN = -1;
+  /**A result of solve: the node budget ran out first**/
+  public static final int UNKNOWN = 0;
+  /**The most moves a search can look ahead**/
+  public static final int MAX_PLIES = 24;
+  /**The number of bytes used by each table entry**/
+  public static final int ENTRY_BYTES = 20;
+
+  /**Proof and disproof numbers at or above this are infinite**/
+  private static final int INFINITY = 1<<30;
+  private static final int WAYS = 2;
+  private static final int PAWN = PieceType.PAWN.ordinal(), KING = PieceType.KING.ordinal(), QUEEN = PieceType.QUEEN.ordinal();
+  private static final Colour[] COLOURS = Colour.values();
+  /**Keys for the number of moves remaining, and the attacker, mixed into the position hash**/
+  private static final long[] PLIES_KEYS = new long[MAX_PLIES+1];
+  private static final long[] ATTACKER_KEYS = new long[3];
+  static{
+    SplittableRandom random = new SplittableRandom(0x5D4F_2B17_C0DEL);
+    for(int i = 0; i<PLIES_KEYS.length; i++) PLIES_KEYS[i] = random.nextLong();
+    for(int i = 0; i<ATTACKER_KEYS.length; i++) ATTACKER_KEYS[i] = random.nextLong();
+  }
+
+  /**The transposition table: the key, proof number, disproof number and work of each entry**/
+  private final long[] keys;
+  private final int[] proofs, disproofs, works;
+  private final int mask;
+
+  /**The position being searched, its hash and the player to move**/
+  private final byte[] squares = new byte[96];
+  private long hash;
+  private int turn;
+  private int attacker;
+  /**The children of the node at each depth of the search: moves, table keys, proof and disproof numbers**/
+  private final int[][] moves = new int[MAX_PLIES+1][512];
+  private final long[][] childKeys = new long[MAX_PLIES+1][512];
+  private final int[][] childProofs = new int[MAX_PLIES+1][512];
+  private final int[][] childDisproofs = new int[MAX_PLIES+1][512];
+  /**What each move at each depth changed, to take it back**/
+  private final int[] moved = new int[MAX_PLIES+1], taken = new int[MAX_PLIES+1];
+  private final long[] hashes = new long[MAX_PLIES+1];
+
+  private long nodes, budget;
+  private boolean outOfBudget;
+  /**The proof and disproof numbers found by the last call to search**/
+  private int proof, disproof;
+  private int bestMove;
+  private int rootMoves;
+
+  /**
+   * Creates a solver.
+   * @param bytes the memory for the transposition table. The number of entries is the largest power of two that fits.
+   * **/
+  public KingCaptureSolver(long bytes){
+    long entries = Math.max(WAYS, Long.highestOneBit(Math.max(1, bytes/ENTRY_BYTES)));
+    if(entries>1<<28) entries = 1<<28;
+    keys = new long[(int) entries];
+    proofs = new int[(int) entries];
+    disproofs = new int[(int) entries];
+    works = new int[(int) entries];
+    mask = (int) entries/WAYS-1;
+  }
+
+  /**
+   * Decides whether a player can force the capture of a King.
+   * @param board the position.
+   * @param attacker the player trying to take a King.
+   * @param plies the number of moves, by all players, in which the King must be taken, at most MAX_PLIES.
+   * @param nodeBudget the most positions to visit before giving up.
+   * @return PROVEN, DISPROVEN or UNKNOWN.
+   * **/
+  public int solve(Board board, Colour attacker, int plies, long nodeBudget){
+    return solve(MoveGenerator.squares(board, new byte[96]), board.getTurn(), attacker, plies, nodeBudget);
+  }
+
+  /**
+   * Decides whether a player can force the capture of a King, on an array of piece codes (see BoardCodec).
+   * @param position the piece code on each position, which is not changed.
+   * @param toMove the player to move.
+   * @param attacker the player trying to take a King.
+   * @param plies the number of moves, by all players, in which the King must be taken, at most MAX_PLIES.
+   * @param nodeBudget the most positions to visit before giving up.
+   * @return PROVEN, DISPROVEN or UNKNOWN.
+   * **/
+  public int solve(byte[] position, Colour toMove, Colour attacker, int plies, long nodeBudget){
+    if(plies<0 || plies>MAX_PLIES) throw new IllegalArgumentException("plies must be between 0 and "+MAX_PLIES+": "+plies);
+    System.arraycopy(position, 0, squares, 0, 96);
+    turn = toMove.ordinal();
+    this.attacker = attacker.ordinal();
+    hash = Zobrist.turn(toMove);
+    for(int s = 0; s<96; s++) hash^=Zobrist.code(squares[s], s);
+    nodes = 0;
+    budget = nodeBudget;
+    outOfBudget = false;
+    bestMove = -1;
+    int quick = evaluate(plies);
+    if(quick!=UNKNOWN){
+      if(quick==PROVEN && turn==this.attacker) bestMove = kingCapture();
+      return quick;
+    }
+    search(0, plies, key(hash, plies), INFINITY, INFINITY);
+    if(proof==0){
+      if(turn==this.attacker) bestMove = provingMove();
+      return PROVEN;
+    }
+    return disproof==0?DISPROVEN:UNKNOWN;
+  }
+
+  /**
+   * @return after solve has returned PROVEN with the attacker to move, a move that keeps the proof, packed by Moves.pack;
+   * otherwise -1.
+   * **/
+  public int getProofMove(){return bestMove;}
+
+  /**@return the number of positions visited by the last call to solve**/
+  public long getNodes(){return nodes;}
+
+  /**Empties the transposition table.**/
+  public void clear(){
+    java.util.Arrays.fill(keys, 0L);
+    java.util.Arrays.fill(works, 0);
+  }
+
+  /**@return the number of entries the table can hold**/
+  public int capacity(){return keys.length;}
+
+  /**@return the table key of the current position with the given number of moves remaining**/
+  private long key(long hash, int plies){
+    return hash^PLIES_KEYS[plies]^ATTACKER_KEYS[attacker];
+  }
+
+  /**
+   * The df-pn search of the current position: expands it until its proof or disproof number reaches its threshold.
+   * @param depth the number of moves made since the root.
+   * @param plies the number of moves remaining.
+   * @param key the table key of the position.
+   * @param proofLimit the proof number threshold.
+   * @param disproofLimit the disproof number threshold.
+   * **/
+  private void search(int depth, int plies, long key, int proofLimit, int disproofLimit){
+    nodes++;
+    int[] list = moves[depth];
+    long[] listKeys = childKeys[depth];
+    int[] pns = childProofs[depth], dns = childDisproofs[depth];
+    boolean or = turn==attacker;
+    int n = MoveGenerator.generate(squares, COLOURS[turn], list);
+    if(depth==0) rootMoves = n;
+    for(int i = 0; i<n; i++){//initial numbers from the table, or from a quick look at the child
+      make(depth, list[i]);
+      int entry = probe(listKeys[i] = key(hash, plies-1));
+      int result = taken[depth]!=0 && (taken[depth]-1)%6==KING? (turn+2)%3==attacker? PROVEN: DISPROVEN: UNKNOWN;
+      if(result==UNKNOWN && entry<0) result = evaluate(plies-1);
+      if(result==PROVEN){pns[i] = 0; dns[i] = INFINITY;}
+      else if(result==DISPROVEN){pns[i] = INFINITY; dns[i] = 0;}
+      else if(entry>=0){pns[i] = proofs[entry]; dns[i] = disproofs[entry];}
+      else{pns[i] = 1; dns[i] = 1;}
+      unmake(depth, list[i]);
+      nodes++;
+    }
+    long start = nodes;
+    while(true){
+      int best = -1, second = INFINITY, sum = 0;//best and second smallest of the numbers minimised here
+      for(int i = 0; i<n; i++){
+        int minimised = or? pns[i]: dns[i];
+        sum = (int) Math.min(INFINITY, (long) sum+(or? dns[i]: pns[i]));
+        if(best<0 || minimised<(or? pns[best]: dns[best])){
+          if(best>=0) second = or? pns[best]: dns[best];
+          best = i;
+        }
+        else if(minimised<second) second = minimised;
+      }
+      if(n==0){proof = INFINITY; disproof = 0;}//no legal moves: the game cannot go on
+      else if(or){proof = pns[best]; disproof = sum;}
+      else{proof = sum; disproof = dns[best];}
+      if(proof>=proofLimit || disproof>=disproofLimit || outOfBudget) break;
+      if(nodes>=budget){outOfBudget = true; break;}
+      int childProofLimit, childDisproofLimit;
+      if(or){
+        childProofLimit = Math.min(proofLimit, second==INFINITY? INFINITY: second+1);
+        childDisproofLimit = disproofLimit>=INFINITY? INFINITY: disproofLimit-disproof+dns[best];
+      }
+      else{
+        childDisproofLimit = Math.min(disproofLimit, second==INFINITY? INFINITY: second+1);
+        childProofLimit = proofLimit>=INFINITY? INFINITY: proofLimit-proof+pns[best];
+      }
+      make(depth, list[best]);
+      search(depth+1, plies-1, listKeys[best], childProofLimit, childDisproofLimit);
+      unmake(depth, list[best]);
+      pns[best] = proof; dns[best] = disproof;
+    }
+    store(key, proof, disproof, (int) Math.min(Integer.MAX_VALUE, nodes-start+1));
+  }
+
+  /**
+   * Looks at the current position without searching it.
+   * @param plies the number of moves remaining.
+   * @return PROVEN if the attacker is to move and can take a King,
+   * DISPROVEN if an opponent is to move and can take a King, or the attacker cannot move again in time,
+   * and UNKNOWN otherwise.
+   * **/
+  private int evaluate(int plies){
+    int wait = (attacker-turn+3)%3;//moves until the attacker's turn
+    if(plies<=wait) return DISPROVEN;
+    if(kingCapture()>=0) return turn==attacker? PROVEN: DISPROVEN;
+    return turn==attacker && plies==1? DISPROVEN: UNKNOWN;
+  }
+
+  /**@return a move of the player to move that takes a King, or -1**/
+  private int kingCapture(){
+    for(int k = 0; k<96; k++){
+      int code = squares[k];
+      if(code==0 || (code-1)%6!=KING || (code-1)/6==turn) continue;
+      for(int s = 0; s<96; s++){
+        int own = squares[s];
+        if(own!=0 && (own-1)/6==turn && MoveGenerator.reaches(squares, s, k) && MoveGenerator.attacks(squares, s, k))
+          return s<<8 | k;
+      }
+    }
+    return -1;
+  }
+
+  /**@return a root move whose child is proven, after a search of the root has proven it**/
+  private int provingMove(){
+    int[] pns = childProofs[0];
+    int[] list = moves[0];
+    for(int i = 0; i<rootMoves; i++) if(pns[i]==0) return list[i];
+    return -1;
+  }
+
+  /**Makes a move on the private squares, following the rules of Board.move, and updates the hash and turn.**/
+  private void make(int depth, int move){
+    int start = move>>>8, end = move&0xFF;
+    int code = squares[start], victim = squares[end];
+    int colour = (code-1)/6;
+    int placed = (code-1)%6==PAWN && end%4==0 && end/32!=colour? 1+6*colour+QUEEN: code;//promotion
+    moved[depth] = code;
+    taken[depth] = victim;
+    hashes[depth] = hash;
+    squares[start] = 0;
+    squares[end] = (byte) placed;
+    hash^=Zobrist.code(code, start)^Zobrist.code(victim, end)^Zobrist.code(placed, end);
+    if((code-1)%6==KING && start%32==16){
+      int column = (end%32)/4;
+      if(column==2 || column==6){//castling, so the rook moves too
+        int rookStart = 32*colour+(column==2?0:28), rookEnd = 32*colour+(column==2?12:20);
+        int rook = squares[rookStart];
+        squares[rookEnd] = (byte) rook;
+        squares[rookStart] = 0;
+        hash^=Zobrist.code(rook, rookStart)^Zobrist.code(rook, rookEnd);
+      }
+    }
+    hash^=Zobrist.turn(COLOURS[turn])^Zobrist.turn(COLOURS[(turn+1)%3]);
+    turn = (turn+1)%3;
+  }
+
+  /**Takes back the move made at a depth.**/
+  private void unmake(int depth, int move){
+    int start = move>>>8, end = move&0xFF;
+    int code = moved[depth];
+    if((code-1)%6==KING && start%32==16){
+      int column = (end%32)/4;
+      if(column==2 || column==6){
+        int colour = (code-1)/6;
+        int rookStart = 32*colour+(column==2?0:28), rookEnd = 32*colour+(column==2?12:20);
+        squares[rookStart] = squares[rookEnd];
+        squares[rookEnd] = 0;
+      }
+    }
+    squares[start] = (byte) code;
+    squares[end] = (byte) taken[depth];
+    hash = hashes[depth];
+    turn = (turn+2)%3;
+  }
+
+  /**@return the table entry holding the key, or -1**/
+  private int probe(long key){
+    int first = (int) (key^key>>>32)&mask;
+    first*=WAYS;
+    for(int e = first; e<first+WAYS; e++) if(keys[e]==key && works[e]>0) return e;
+    return -1;
+  }
+
+  /**Stores the numbers for a key, replacing the same key or the entry that took the least work.**/
+  private void store(long key, int proof, int disproof, int work){
+    int first = (int) (key^key>>>32)&mask;
+    first*=WAYS;
+    int victim = first;
+    for(int e = first; e<first+WAYS; e++){
+      if(keys[e]==key || works[e]==0){victim = e; break;}
+      if(works[e]<works[victim]) victim = e;
+    }
+    keys[victim] = key;
+    proofs[victim] = proof;
+    disproofs[victim] = disproof;
+    works[victim] = work;
+  }
+}
@@ -0,0 +1,325 @@
+package threeChess.search;
+
+import threeChess.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Node storage for very large search trees, shared between search threads.
+ * Nodes are packed into 20 bytes each in a direct (off-heap) buffer, so a tree of tens of millions of nodes
+ * is a single allocation the garbage collector never has to trace.
+ * Each node holds:
+ * <ul>
+ * <li>the number of visits (int),</li>
+ * <li>the total score of blue and of green over those visits (floats). Red's total is the negation of their sum,
+ * so scores added to the store must sum to zero, as game results do.
+ * Being floats, the totals stop taking in results of size 1 after about 2^24 visits to a node,</li>
+ * <li>the index of its first child (int), its children being stored contiguously,</li>
+ * <li>the move leading to it, packed by Moves.pack, and its number of children (16 bits each, in one int).</li>
+ * </ul>
+ * Nodes do not record their parents: searches keep the path they followed and update each node on it.
+ * <p>
+ * Updates and expansions are atomic, so any number of threads can search the tree at once.
+ * When the store fills up, expand returns FULL, and the tree can be pruned once the search threads have stopped,
+ * removing the subtrees under rarely visited nodes and, optionally, everything outside a new root.
+ * **/
+public class NodeStore{
+
+  /**The number of bytes used by each node**/
+  public static final int NODE_BYTES = 20;
+  /**The index of the root node**/
+  public static final int ROOT = 0;
+  /**Returned by expand when the store is full**/
+  public static final int FULL = -1;
+  /**Returned by expand when another thread is expanding the node**/
+  public static final int BUSY = -2;
+
+  private static final int VISITS = 0, BLUE = 4, GREEN = 8, FIRST = 12, INFO = 16;
+  /**Child counts of nodes that have not been expanded, or are being expanded**/
+  private static final int UNEXPANDED = 0xFFFF, EXPANDING = 0xFFFE;
+
+  private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+  private static final VarHandle FLOAT = MethodHandles.byteBufferViewVarHandle(float[].class, ByteOrder.nativeOrder());
+
+  private final ByteBuffer buffer;
+  private final int capacity;
+  /**The next free node. It may pass the capacity when the store is full.**/
+  private final AtomicInteger top = new AtomicInteger();
+
+  /**
+   * Allocates a node store.
+   * @param capacity the maximum number of nodes.
+   * **/
+  public NodeStore(int capacity){
+    if(capacity<1 || capacity>Integer.MAX_VALUE/NODE_BYTES) throw new IllegalArgumentException("Capacity must be between 1 and "+Integer.MAX_VALUE/NODE_BYTES+".");
+    this.capacity = capacity;
+    buffer = ByteBuffer.allocateDirect(capacity*NODE_BYTES).order(ByteOrder.nativeOrder());
+    if(buffer.alignmentOffset(0, 8)!=0) throw new IllegalStateException("Direct buffer is not aligned for atomic access.");
+    clear();
+  }
+
+  /**
+   * Allocates a node store within a memory budget.
+   * @param bytes the maximum number of bytes to use.
+   * @return a store with as many nodes as fit in the budget.
+   * **/
+  public static NodeStore ofBytes(long bytes){
+    return new NodeStore((int) Math.min(bytes/NODE_BYTES, Integer.MAX_VALUE/NODE_BYTES));
+  }
+
+  /**Discards every node, leaving an unexpanded root. Search threads must be stopped.**/
+  public void clear(){
+    init(ROOT, -1);
+    top.set(1);
+  }
+
+  /**Writes a fresh unexpanded node.**/
+  private void init(int node, int move){
+    int at = node*NODE_BYTES;
+    buffer.putInt(at+VISITS, 0);
+    buffer.putFloat(at+BLUE, 0f);
+    buffer.putFloat(at+GREEN, 0f);
+    buffer.putInt(at+FIRST, -1);
+    buffer.putInt(at+INFO, (move&0xFFFF)<<16 | UNEXPANDED);
+  }
+
+  /**
+   * Adds children to an unexpanded node, one for each move.
+   * If several threads try to expand a node at once, one succeeds and the others are told the node is busy.
+   * @param node the node to expand.
+   * @param moves the moves from the node's position, packed by Moves.pack.
+   * @param n the number of moves to use.
+   * @return the index of the first child; FULL if there is no room, in which case the node is left unexpanded;
+   * or BUSY if the node is already expanded or being expanded by another thread.
+   * **/
+  public int expand(int node, int[] moves, int n){
+    if(n>=EXPANDING) throw new IllegalArgumentException("Too many children: "+n);
+    int at = node*NODE_BYTES+INFO;
+    int info = (int) INT.getAcquire(buffer, at);
+    if((info&0xFFFF)!=UNEXPANDED || !INT.compareAndSet(buffer, at, info, info&0xFFFF0000 | EXPANDING)) return BUSY;
+    if(top.get()+n>capacity){
+      INT.setRelease(buffer, at, info);
+      return FULL;
+    }
+    int start = top.getAndAdd(n);
+    if(start+n>capacity){//another thread took the last of the room
+      INT.setRelease(buffer, at, info);
+      return FULL;
+    }
+    for(int i = 0; i<n; i++) init(start+i, moves[i]);
+    buffer.putInt(node*NODE_BYTES+FIRST, start);
+    INT.setRelease(buffer, at, info&0xFFFF0000 | n);//publishes the children
+    return start;
+  }
+
+  /**
+   * Atomically adds to a node's statistics.
+   * Negative values can be used to take back a virtual loss added while a playout was in progress.
+   * @param node the node to update.
+   * @param visits the number of visits to add.
+   * @param blue the score to add to blue's total.
+   * @param green the score to add to green's total. Red's score is taken to be -(blue+green).
+   * **/
+  public void update(int node, int visits, float blue, float green){
+    int at = node*NODE_BYTES;
+    INT.getAndAdd(buffer, at+VISITS, visits);
+    addFloat(at+BLUE, blue);
+    addFloat(at+GREEN, green);
+  }
+
+  /**
+   * Adds the result of a playout to every node on a path.
+   * @param path the nodes visited, from the root.
+   * @param length the number of nodes on the path.
+   * @param scores the scores of blue, green and red, which must sum to zero.
+   * **/
+  public void backup(int[] path, int length, float[] scores){
+    for(int i = 0; i<length; i++) update(path[i], 1, scores[0], scores[1]);
+  }
+
+  private void addFloat(int at, float delta){
+    if(delta==0f) return;
+    float old;
+    do old = (float) FLOAT.getVolatile(buffer, at);
+    while(!FLOAT.compareAndSet(buffer, at, old, old+delta));
+  }
+
+  /**
+   * Finds the child of a node reached by a move.
+   * @param node the node to search.
+   * @param packedMove the move, packed by Moves.pack.
+   * @return the index of the child, or -1 if the node is unexpanded or has no such child.
+   * **/
+  public int findChild(int node, int packedMove){
+    int n = childCount(node);
+    int first = buffer.getInt(node*NODE_BYTES+FIRST);
+    for(int c = first; c<first+n; c++)
+      if(move(c)==packedMove) return c;
+    return -1;
+  }
+
+  /**
+   * @param node an expanded node.
+   * @return the child of the node with the most visits, or -1 if it has no children.
+   * **/
+  public int mostVisitedChild(int node){
+    int n = childCount(node);
+    int first = buffer.getInt(node*NODE_BYTES+FIRST);
+    int best = -1;
+    for(int c = first; c<first+n; c++)
+      if(best<0 || visits(c)>visits(best)) best = c;
+    return best;
+  }
+
+  /**@return whether the node has children, or has been expanded with none**/
+  public boolean isExpanded(int node){
+    int count = info(node)&0xFFFF;
+    return count!=UNEXPANDED && count!=EXPANDING;
+  }
+
+  /**@return the number of children of the node, or 0 if it has not been expanded**/
+  public int childCount(int node){
+    int count = info(node)&0xFFFF;
+    return count>=EXPANDING?0:count;
+  }
+
+  /**@return the index of the node's i-th child**/
+  public int child(int node, int i){
+    childCount(node);//acquires the children
+    return buffer.getInt(node*NODE_BYTES+FIRST)+i;
+  }
+
+  /**@return the move leading to the node, packed by Moves.pack, or 0xFFFF for the root**/
+  public int move(int node){return info(node)>>>16;}
+
+  /**@return the number of visits to the node**/
+  public int visits(int node){return (int) INT.getOpaque(buffer, node*NODE_BYTES+VISITS);}
+
+  /**
+   * The score totals are floats, so once a node has about 2^24 visits, a result of 1 or less
+   * is too small to change its total, and the total stops growing.
+   * Searches that run that long should rely on visits, as mostVisitedChild does, rather than scores near the root.
+   * @return the total score of the colour over the visits to the node
+   * **/
+  public float score(int node, Colour colour){
+    int at = node*NODE_BYTES;
+    float blue = (float) FLOAT.getOpaque(buffer, at+BLUE);
+    float green = (float) FLOAT.getOpaque(buffer, at+GREEN);
+    switch(colour){
+      case BLUE: return blue;
+      case GREEN: return green;
+      default: return -(blue+green);
+    }
+  }
+
+  /**
+   * Past about 2^24 visits this drifts towards 0, as the totals stop taking in new results (see score).
+   * @return the average score of the colour over the visits to the node, or 0 if it has not been visited
+   * **/
+  public float mean(int node, Colour colour){
+    int v = visits(node);
+    return v<=0?0f:score(node, colour)/v;
+  }
+
+  private int info(int node){return (int) INT.getAcquire(buffer, node*NODE_BYTES+INFO);}
+
+  /**@return the number of nodes in use**/
+  public int size(){return Math.min(top.get(), capacity);}
+
+  /**@return the maximum number of nodes**/
+  public int capacity(){return capacity;}
+
+  /**@return the number of bytes of memory used by the store**/
+  public long memory(){return (long) capacity*NODE_BYTES;}
+
+  /**
+   * Prunes the tree until it takes no more than the given number of nodes.
+   * The children of the least visited nodes are removed first, doubling the visits a node needs to keep its children until the tree fits.
+   * Search threads must be stopped while pruning.
+   * @param root the node to keep as the root, which moves to index ROOT. Everything outside its subtree is removed.
+   * @param target the maximum number of nodes to keep, at least 1.
+   * @return the number of nodes kept.
+   * @throws IllegalArgumentException if the target is less than 1, as the root is always kept.
+   * **/
+  public int prune(int root, int target){
+    if(target<1) throw new IllegalArgumentException("Target must be at least 1: "+target);
+    long minVisits = 0;
+    long last = visits(root)+1L;//no node needs more visits than this, at which only the root is kept
+    long[] live = new long[(size()+63)>>>6];
+    while(mark(root, minVisits, live)>target) minVisits = Math.min(Math.max(1, minVisits*2), last);
+    return compact(root, live);
+  }
+
+  /**
+   * Makes a node the root, removing everything outside its subtree.
+   * Search threads must be stopped.
+   * @param root the node to keep as the root, which moves to index ROOT.
+   * @return the number of nodes kept.
+   * **/
+  public int reroot(int root){
+    long[] live = new long[(size()+63)>>>6];
+    mark(root, 0, live);
+    return compact(root, live);
+  }
+
+  /**
+   * Marks the nodes that are kept in a bit set.
+   * A node's children are always stored after it, so a single pass in index order finds the whole subtree.
+   * @return the number of nodes marked.
+   * **/
+  private int mark(int root, long minVisits, long[] live){
+    java.util.Arrays.fill(live, 0L);
+    live[root>>>6]|=1L<<root;
+    int marked = 1;
+    for(int node = root, n = size(); node<n; node++){
+      if((live[node>>>6]&1L<<node)==0 || !keepsChildren(node, minVisits)) continue;
+      int first = buffer.getInt(node*NODE_BYTES+FIRST), count = childCount(node);
+      for(int c = first; c<first+count; c++) live[c>>>6]|=1L<<c;
+      marked+=count;
+    }
+    return marked;
+  }
+
+  private boolean keepsChildren(int node, long minVisits){
+    return childCount(node)>0 && visits(node)>=minVisits;
+  }
+
+  /**
+   * Slides the marked nodes down to the start of the store, keeping their order.
+   * Each node moves to its rank among the marked nodes, which is never after where it is,
+   * so nodes can be moved in index order without overwriting any that have not yet moved.
+   * Children blocks are kept or removed whole, so they stay contiguous.
+   * @return the number of nodes kept.
+   * **/
+  private int compact(int root, long[] live){
+    int[] ranks = new int[live.length+1];//the number of marked nodes before each word of the bit set
+    for(int w = 0; w<live.length; w++) ranks[w+1] = ranks[w]+Long.bitCount(live[w]);
+    byte[] node = new byte[NODE_BYTES];
+    for(int old = root, n = size(); old<n; old++){
+      if((live[old>>>6]&1L<<old)==0) continue;
+      int at = old*NODE_BYTES;
+      int first = buffer.getInt(at+FIRST);
+      int info = buffer.getInt(at+INFO);
+      if(old==root) info|=0xFFFF0000;//the root has no move
+      int count = info&0xFFFF;
+      boolean keep = count>0 && count<EXPANDING && (live[first>>>6]&1L<<first)!=0;
+      buffer.get(at, node);
+      buffer.put(rank(old, live, ranks)*NODE_BYTES, node);
+      at = rank(old, live, ranks)*NODE_BYTES;
+      buffer.putInt(at+FIRST, keep?rank(first, live, ranks):-1);
+      buffer.putInt(at+INFO, keep || count==0?info:(info&0xFFFF0000 | UNEXPANDED));
+    }
+    int kept = ranks[live.length];
+    top.set(kept);
+    return kept;
+  }
+
+  /**@return the number of marked nodes before the given one**/
+  private static int rank(int node, long[] live, int[] ranks){
+    return ranks[node>>>6]+Long.bitCount(live[node>>>6]&((1L<<node)-1));
+  }
+}
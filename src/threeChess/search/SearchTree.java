@@ -0,0 +1,228 @@
+package threeChess.search;
+
+import threeChess.*;
+
+/**
+ * A game tree for Monte Carlo style searches that can be kept from one turn to the next.
+ * Nodes live in a fixed size arena of parallel arrays and are referred to by index,
+ * so building the tree allocates no objects.
+ * The children of a node are stored contiguously, and each node records the move leading to it,
+ * its parent, its visit count and the total score of each colour over its visits.
+ * <p>
+ * When the agent is next to move, reroot(Board) walks down the tree along the moves played since the last search
+ * (normally the agent's own move and its two opponents' replies) and keeps the subtree found there.
+ * The kept subtree is copied into a second arena and the old arena is discarded in one step,
+ * so the cost of rerooting depends only on the size of the subtree kept.
+ * <p>
+ * A SearchTree is not thread safe.
+ * **/
+public class SearchTree{
+
+  /**The index of the root node**/
+  public static final int ROOT = 0;
+  /**The child count of a node that has not been expanded**/
+  private static final int UNEXPANDED = -1;
+
+  private final int capacity;
+  //the active arena
+  private int[] move, parent, first, count, visits;
+  private double[] score;
+  //the spare arena, swapped in when rerooting
+  private int[] move2, parent2, first2, count2, visits2;
+  private double[] score2;
+  /**The number of nodes in use**/
+  private int size;
+  /**The number of moves played in the game at the root**/
+  private int rootPly;
+
+  /**
+   * Creates an empty search tree.
+   * @param capacity the maximum number of nodes in the tree.
+   * Twice this many nodes are allocated, so that a subtree can be kept when rerooting.
+   * **/
+  public SearchTree(int capacity){
+    if(capacity<1) throw new IllegalArgumentException("A tree needs room for its root.");
+    this.capacity = capacity;
+    move = new int[capacity]; parent = new int[capacity]; first = new int[capacity];
+    count = new int[capacity]; visits = new int[capacity]; score = new double[3*capacity];
+    move2 = new int[capacity]; parent2 = new int[capacity]; first2 = new int[capacity];
+    count2 = new int[capacity]; visits2 = new int[capacity]; score2 = new double[3*capacity];
+    clear(0);
+  }
+
+  /**
+   * Discards the whole tree, leaving an unexpanded root.
+   * @param ply the number of moves played in the game at the new root.
+   * **/
+  public void clear(int ply){
+    size = 1;
+    rootPly = ply;
+    move[ROOT] = -1; parent[ROOT] = -1; first[ROOT] = -1;
+    count[ROOT] = UNEXPANDED; visits[ROOT] = 0;
+    score[0] = score[1] = score[2] = 0;
+  }
+
+  /**
+   * Moves the root of the tree to the given board's position, keeping the statistics gathered for it.
+   * The moves played since the root are looked up in the tree, and the subtree reached is kept.
+   * If the board's position is not in the tree, the tree is cleared.
+   * Boards should come from the same game as the earlier searches; clear the tree when a new game starts.
+   * @param board the board the next search starts from.
+   * @return the number of nodes kept.
+   * **/
+  public int reroot(Board board){
+    int ply = board.getMoveCount();
+    if(ply<rootPly){clear(ply); return 0;}
+    int node = ROOT;
+    for(int i = rootPly; i<ply && node>=0; i++) node = findChild(node, board.getPackedMove(i));
+    if(node<0){clear(ply); return 0;}
+    rootPly = ply;
+    if(node!=ROOT) compact(node);
+    return size;
+  }
+
+  /**
+   * Moves the root to a child of the root, keeping that child's subtree.
+   * @param node a child of the root.
+   * **/
+  public void advance(int node){
+    if(parent[node]!=ROOT) throw new IllegalArgumentException("Can only advance to a child of the root.");
+    rootPly++;
+    compact(node);
+  }
+
+  /**
+   * Copies the subtree at the given node into the spare arena, breadth first, and makes it the active arena.
+   * Every node keeps its children contiguous, since a node's children are copied together when it is reached.
+   * Until a node's children are copied, its first field holds the index of its first child in the old arena.
+   * @param node the new root.
+   * **/
+  private void compact(int node){
+    copy(node, ROOT, -1);
+    int top = 1;
+    for(int scan = 0; scan<top; scan++){
+      int n = count2[scan];
+      if(n<=0) continue;
+      int old = first2[scan];
+      first2[scan] = top;
+      for(int i = 0; i<n; i++) copy(old+i, top++, scan);
+    }
+    int[] t;
+    t = move; move = move2; move2 = t;
+    t = parent; parent = parent2; parent2 = t;
+    t = first; first = first2; first2 = t;
+    t = count; count = count2; count2 = t;
+    t = visits; visits = visits2; visits2 = t;
+    double[] s = score; score = score2; score2 = s;
+    move[ROOT] = -1;//the root has no move, as after clear
+    size = top;
+  }
+
+  /**Copies a node from the active arena to the spare arena, giving it a new parent.**/
+  private void copy(int from, int to, int newParent){
+    move2[to] = move[from];
+    parent2[to] = newParent;
+    first2[to] = first[from];
+    count2[to] = count[from];
+    visits2[to] = visits[from];
+    System.arraycopy(score, 3*from, score2, 3*to, 3);
+  }
+
+  /**
+   * Adds children to an unexpanded node, one for each move.
+   * @param node the node to expand.
+   * @param moves the moves from the node's position, packed by Moves.pack.
+   * @param n the number of moves to use.
+   * @return the index of the first child, or -1 if the tree is full, in which case the node is left unexpanded.
+   * **/
+  public int expand(int node, int[] moves, int n){
+    if(count[node]!=UNEXPANDED) throw new IllegalStateException("Node "+node+" is already expanded.");
+    if(size+n>capacity) return -1;
+    int start = size;
+    for(int i = 0; i<n; i++){
+      int c = start+i;
+      move[c] = moves[i]; parent[c] = node; first[c] = -1;
+      count[c] = UNEXPANDED; visits[c] = 0;
+      score[3*c] = score[3*c+1] = score[3*c+2] = 0;
+    }
+    first[node] = start;
+    count[node] = n;
+    size+=n;
+    return start;
+  }
+
+  /**
+   * Adds the result of a playout to a node and all its ancestors.
+   * @param node the node the playout started from.
+   * @param scores the scores of blue, green and red from the playout.
+   * **/
+  public void backup(int node, double[] scores){
+    for(; node>=0; node = parent[node]){
+      visits[node]++;
+      score[3*node]+=scores[0];
+      score[3*node+1]+=scores[1];
+      score[3*node+2]+=scores[2];
+    }
+  }
+
+  /**
+   * Finds the child of a node reached by a move.
+   * @param node the node to search.
+   * @param packedMove the move, packed by Moves.pack.
+   * @return the index of the child, or -1 if the node is unexpanded or has no such child.
+   * **/
+  public int findChild(int node, int packedMove){
+    for(int i = 0, c = first[node]; i<count[node]; i++, c++)
+      if(move[c]==packedMove) return c;
+    return -1;
+  }
+
+  /**
+   * @param node an expanded node.
+   * @return the child of the node with the most visits, or -1 if it has no children.
+   * **/
+  public int mostVisitedChild(int node){
+    int best = -1;
+    for(int i = 0, c = first[node]; i<count[node]; i++, c++)
+      if(best<0 || visits[c]>visits[best]) best = c;
+    return best;
+  }
+
+  /**@return whether the node has been expanded**/
+  public boolean isExpanded(int node){return count[node]!=UNEXPANDED;}
+
+  /**@return the number of children of the node, or 0 if it has not been expanded**/
+  public int childCount(int node){return Math.max(count[node], 0);}
+
+  /**@return the index of the node's i-th child**/
+  public int child(int node, int i){return first[node]+i;}
+
+  /**@return the index of the node's parent, or -1 for the root**/
+  public int parent(int node){return parent[node];}
+
+  /**@return the move leading to the node, packed by Moves.pack, or -1 for the root**/
+  public int move(int node){return move[node];}
+
+  /**@return the number of playouts through the node**/
+  public int visits(int node){return visits[node];}
+
+  /**@return the total score of the colour over the playouts through the node**/
+  public double score(int node, Colour colour){return score[3*node+colour.ordinal()];}
+
+  /**@return the average score of the colour over the playouts through the node, or 0 if it has not been visited**/
+  public double mean(int node, Colour colour){
+    return visits[node]==0?0:score[3*node+colour.ordinal()]/visits[node];
+  }
+
+  /**@return the number of moves played in the game at the root**/
+  public int getRootPly(){return rootPly;}
+
+  /**@return the number of nodes in the tree**/
+  public int size(){return size;}
+
+  /**@return the maximum number of nodes in the tree**/
+  public int capacity(){return capacity;}
+
+  /**@return whether the tree has room for n more nodes**/
+  public boolean hasRoom(int n){return size+n<=capacity;}
+}
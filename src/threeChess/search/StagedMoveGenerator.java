@@ -0,0 +1,145 @@
+package threeChess.search;
+
+import threeChess.*;
+
+/**
+ * Generates the legal moves of a position a stage at a time, best first, for searches that expect a cutoff.
+ * The stages are:
+ * <ol>
+ * <li>KING_CAPTURES: moves taking an opponent's King, which end the game;</li>
+ * <li>CAPTURES: the other captures, most valuable victim first and, for equal victims, least valuable attacker first;</li>
+ * <li>PROMOTIONS: pawn moves to an opponent's back rank that take nothing;</li>
+ * <li>QUIETS: every other move.</li>
+ * </ol>
+ * A stage's moves are only generated when the first move of the stage is asked for,
+ * so a search that stops after a King capture or a good capture never generates the quiet moves.
+ * Every legal move is returned exactly once. Moves are packed by Moves.pack.
+ * A generator is not thread safe; give each thread, or each ply of a search, its own.
+ * **/
+public class StagedMoveGenerator{
+
+  /**The stages, in the order they are played**/
+  public static final int KING_CAPTURES = 0, CAPTURES = 1, PROMOTIONS = 2, QUIETS = 3, DONE = 4;
+  /**Returned by next when every move has been returned**/
+  public static final int NONE = -1;
+
+  private static final int[] VALUE = new int[19];
+  static{
+    for(int code = 1; code<19; code++) VALUE[code] = PieceType.values()[(code-1)%6].getValue();
+  }
+  private static final int PAWN = PieceType.PAWN.ordinal(), KING = PieceType.KING.ordinal();
+
+  private final byte[] squares = new byte[96];
+  private int colour;
+  private int stage;
+  /**The moves of the current stage, and the index of the next to return**/
+  private final int[] moves = new int[512];
+  private int count, next;
+  /**The sort key of each capture**/
+  private final int[] keys = new int[512];
+  /**The pawn moves that take nothing and do not promote, kept from PROMOTIONS for QUIETS**/
+  private final int[] pawnQuiets = new int[128];
+  private int pawnQuietCount;
+
+  /**
+   * Starts generating the moves of the player to move on a board.
+   * @param board the board.
+   * **/
+  public void reset(Board board){
+    reset(MoveGenerator.squares(board, squares), board.getTurn());
+  }
+
+  /**
+   * Starts generating the moves of a player on an array of piece codes (see BoardCodec).
+   * @param position the piece code on each position, which is copied.
+   * @param turn the player to move.
+   * **/
+  public void reset(byte[] position, Colour turn){
+    if(position!=squares) System.arraycopy(position, 0, squares, 0, 96);
+    colour = turn.ordinal();
+    stage = KING_CAPTURES;
+    count = next = 0;
+    pawnQuietCount = 0;
+    kingCaptures();
+  }
+
+  /**
+   * @return the next move, packed by Moves.pack, generating the next stage if needed, or NONE if there are no more.
+   * **/
+  public int next(){
+    while(next==count){
+      if(stage==DONE) return NONE;
+      stage++;
+      count = next = 0;
+      switch(stage){
+        case CAPTURES: captures(); break;
+        case PROMOTIONS: promotions(); break;
+        case QUIETS: quiets(); break;
+        default: break;
+      }
+    }
+    if(stage==CAPTURES){//selection sort, one move at a time, since a cutoff usually comes early
+      int best = next;
+      for(int i = next+1; i<count; i++) if(keys[i]>keys[best]) best = i;
+      int move = moves[best], key = keys[best];
+      moves[best] = moves[next]; keys[best] = keys[next];
+      moves[next] = move; keys[next] = key;
+    }
+    return moves[next++];
+  }
+
+  /**@return the stage of the move last returned by next, or DONE**/
+  public int getStage(){return stage;}
+
+  /**Finds the moves that take an opponent's King.**/
+  private void kingCaptures(){
+    for(int k = 0; k<96; k++){
+      int code = squares[k];
+      if(code==0 || (code-1)%6!=KING || (code-1)/6==colour) continue;
+      for(int s = 0; s<96; s++){
+        int own = squares[s];
+        if(own!=0 && (own-1)/6==colour && MoveGenerator.reaches(squares, s, k) && MoveGenerator.attacks(squares, s, k))
+          moves[count++] = s<<8 | k;
+      }
+    }
+  }
+
+  /**Generates the captures of pieces other than Kings, with their sort keys.**/
+  private void captures(){
+    int n = MoveGenerator.generate(squares, Colour.values()[colour], moves, MoveGenerator.CAPTURES);
+    for(int i = 0; i<n; i++){
+      int move = moves[i];
+      int victim = squares[move&0xFF];
+      if((victim-1)%6==KING) continue;//already returned
+      moves[count] = move;
+      keys[count++] = 16*VALUE[victim]-VALUE[squares[move>>>8]];
+    }
+  }
+
+  /**Generates the pawn moves that take nothing, returning the promotions now and keeping the others for later.**/
+  private void promotions(){
+    for(int s = 0; s<96; s++){
+      if(squares[s]!=1+6*colour+PAWN) continue;
+      int first = count;
+      count = MoveGenerator.generate(squares, s, moves, count, MoveGenerator.QUIETS);
+      for(int i = first; i<count; i++){
+        int end = moves[i]&0xFF;
+        if(end%4!=0 || end/32==colour){//not a promotion
+          pawnQuiets[pawnQuietCount++] = moves[i];
+          moves[i--] = moves[--count];
+        }
+      }
+    }
+  }
+
+  /**Generates the remaining moves that take nothing.**/
+  private void quiets(){
+    System.arraycopy(pawnQuiets, 0, moves, 0, pawnQuietCount);
+    count = pawnQuietCount;
+    for(int s = 0; s<96; s++){
+      int code = squares[s];
+      if(code!=0 && (code-1)/6==colour && (code-1)%6!=PAWN)
+        count = MoveGenerator.generate(squares, s, moves, count, MoveGenerator.QUIETS);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package threeChess.search;
+
+import threeChess.*;
+
+/**
+ * Static exchange evaluation for three players: the material each player gains or loses
+ * if the pieces attacking a position take turns capturing on it.
+ * <p>
+ * Players move in the board's turn order. On their turn a player may capture on the position
+ * with their least valuable piece that attacks it, if it holds an opponent's piece, or let the turn pass.
+ * Either opponent's pieces may be captured, so the two opponents may also capture each other's pieces.
+ * Each player chooses the option that is best for their own material, assuming the others do the same,
+ * and the exchange ends when all three players pass in a row, or a King is taken.
+ * Pieces behind a sliding attacker join the exchange once it has moved off the line.
+ * <p>
+ * The board is never changed: the exchange is played out on a private array of piece codes.
+ * A StaticExchange is not thread safe; give each thread its own.
+ * **/
+public class StaticExchange{
+
+  private static final int[] VALUE = new int[19];
+  static{
+    for(int code = 1; code<19; code++) VALUE[code] = PieceType.values()[(code-1)%6].getValue();
+  }
+  /**The most captures that are looked at in one exchange**/
+  private static final int MAX_CAPTURES = 12;
+  private static final int KING = PieceType.KING.ordinal(), PAWN = PieceType.PAWN.ordinal();
+
+  private final byte[] squares = new byte[96];
+  /**The positions of the pieces that could join the exchange, by colour, least valuable first.
+   * Pieces that have moved leave their position empty, so they no longer attack the target.**/
+  private final int[][] attackers = new int[3][48];
+  private final int[] counts = new int[3];
+  /**The gains of each player, for each depth of the exchange and each option**/
+  private final int[][] scratch = new int[3*(3*MAX_CAPTURES+4)][3];
+  private int target;
+
+  /**
+   * Evaluates a move: the move is made, and then the exchange on its end position is played out.
+   * For a move to an empty position, this is what the moving piece risks there.
+   * @param board the board before the move.
+   * @param start the start of a legal move.
+   * @param end the end of the move.
+   * @param gains an array of length 3 for the result.
+   * @return the material gained by blue, green and red, in the array given.
+   * **/
+  public int[] evaluate(Board board, Position start, Position end, int[] gains){
+    return evaluate(MoveGenerator.squares(board, squares), board.getTurn(), start.ordinal(), end.ordinal(), gains);
+  }
+
+  /**
+   * Evaluates a move on an array of piece codes (see BoardCodec).
+   * @param position the piece code on each position, which is not changed.
+   * @param turn the colour to move.
+   * @param start the ordinal of the start of a legal move.
+   * @param end the ordinal of the end of the move.
+   * @param gains an array of length 3 for the result.
+   * @return the material gained by blue, green and red, in the array given.
+   * **/
+  public int[] evaluate(byte[] position, Colour turn, int start, int end, int[] gains){
+    load(position, end);
+    move(turn.ordinal(), start, 0, 0, gains);
+    return gains;
+  }
+
+  /**
+   * Evaluates the exchange on a position, with the player to move free to start it or pass.
+   * @param board the board.
+   * @param target the position fought over.
+   * @param gains an array of length 3 for the result.
+   * @return the material gained by blue, green and red, in the array given.
+   * **/
+  public int[] evaluate(Board board, Position target, int[] gains){
+    load(MoveGenerator.squares(board, squares), target.ordinal());
+    int[] result = search(board.getTurn().ordinal(), 0, 0, 0);
+    System.arraycopy(result, 0, gains, 0, 3);
+    return gains;
+  }
+
+  /**
+   * Evaluates a move for the player making it.
+   * @param board the board before the move.
+   * @param start the start of a legal move.
+   * @param end the end of the move.
+   * @return the material gained by the player to move.
+   * **/
+  public int gain(Board board, Position start, Position end){
+    return evaluate(board, start, end, scratch[0])[board.getTurn().ordinal()];
+  }
+
+  /**Copies the position and finds every piece that attacks the target, or would once the pieces in front of it moved.**/
+  private void load(byte[] position, int target){
+    if(position!=squares) System.arraycopy(position, 0, squares, 0, 96);
+    this.target = target;
+    counts[0] = counts[1] = counts[2] = 0;
+    for(int s = 0; s<96; s++){
+      int code = squares[s];
+      if(code==0 || !MoveGenerator.reaches(squares, s, target)) continue;
+      int colour = (code-1)/6;
+      int n = counts[colour]++;
+      int[] list = attackers[colour];
+      while(n>0 && VALUE[squares[list[n-1]]]>VALUE[code]){list[n] = list[n-1]; n--;}//insertion sort by value
+      list[n] = s;
+    }
+  }
+
+  /**@return the position of the colour's least valuable piece with a clear path to the target, or -1**/
+  private int leastValuable(int colour){
+    int[] list = attackers[colour];
+    for(int i = 0; i<counts[colour]; i++)
+      if(MoveGenerator.attacks(squares, list[i], target)) return list[i];
+    return -1;
+  }
+
+  /**
+   * Finds the outcome of the exchange from the given player's turn.
+   * @param turn the player to move.
+   * @param passes the number of players in a row who have passed.
+   * @param captures the number of captures made so far.
+   * @param depth the number of turns taken so far, which picks the scratch arrays.
+   * @return the gains of each player from here, in a scratch array.
+   * **/
+  private int[] search(int turn, int passes, int captures, int depth){
+    int[] best = scratch[2*depth+1];
+    best[0] = best[1] = best[2] = 0;
+    if(passes==3) return best;
+    int[] pass = search((turn+1)%3, passes+1, captures, depth+1);
+    System.arraycopy(pass, 0, best, 0, 3);
+    int occupant = squares[target];
+    if(occupant==0 || (occupant-1)/6==turn || captures>=MAX_CAPTURES) return best;
+    int start = leastValuable(turn);
+    if(start<0) return best;
+    int[] take = scratch[2*depth+2];
+    move(turn, start, captures, depth, take);
+    if(take[turn]>best[turn]) System.arraycopy(take, 0, best, 0, 3);//capture only if it gains
+    return best;
+  }
+
+  /**
+   * Moves a piece to the target, finds the outcome of the rest of the exchange, and takes the move back.
+   * @param turn the player moving.
+   * @param start the position of the moving piece.
+   * @param captures the number of captures made so far.
+   * @param depth the number of turns taken so far.
+   * @param gains an array for the gains of each player from the move on.
+   * **/
+  private void move(int turn, int start, int captures, int depth, int[] gains){
+    int mover = squares[start];
+    int occupant = squares[target];
+    int placed = mover;
+    if((mover-1)%6==PAWN && target%4==0 && target/32!=turn) placed = 1+6*turn+PieceType.QUEEN.ordinal();//promotion
+    gains[0] = gains[1] = gains[2] = 0;
+    if(occupant!=0 && (occupant-1)%6==KING){//the game is over
+      gains[turn] = VALUE[occupant]+VALUE[placed]-VALUE[mover];
+      gains[(occupant-1)/6] = -VALUE[occupant];
+      return;
+    }
+    squares[start] = 0;
+    squares[target] = (byte) placed;
+    int[] rest = search((turn+1)%3, 0, occupant==0? captures: captures+1, depth+1);
+    System.arraycopy(rest, 0, gains, 0, 3);
+    squares[target] = (byte) occupant;
+    squares[start] = (byte) mover;
+    gains[turn]+=VALUE[placed]-VALUE[mover];
+    if(occupant!=0){
+      gains[turn]+=VALUE[occupant];
+      gains[(occupant-1)/6]-=VALUE[occupant];
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package threeChess.search;
+
+import threeChess.*;
+
+/**
+ * Turns an agent's clock into time limits for one move, and lets a search check them cheaply.
+ * <p>
+ * At the start of playMove, start(board) sets two deadlines, measured on the monotonic System.nanoTime() clock:
+ * <ul>
+ * <li>the soft deadline, the time the move should take: the time left, less a safety margin,
+ * shared between the moves still expected, and scaled by how volatile the position is;</li>
+ * <li>the hard deadline, which must never be passed: a few times the soft limit,
+ * but never more than a fixed fraction of the time left.</li>
+ * </ul>
+ * The safety margin covers the time the runner charges outside playMove, such as stopPondering and rounding,
+ * so an agent that stops at its hard deadline never runs out of time.
+ * The moves still expected fall as the game goes on, but never below a minimum,
+ * so an agent spends a steady share of its clock and has little left unused when the game ends.
+ * <p>
+ * Iterative searches should check isSoftExpired() before starting another iteration,
+ * and call poll() in their inner loops, which reads the clock only once every check interval calls.
+ * Searches can call setVolatility as they go, for example when the best move changes between iterations,
+ * to spend more time on unclear positions and less on settled ones.
+ * <p>
+ * In an untimed game ThreeChess.play gives every player a 1 ms clock that is never charged,
+ * so start(board) sets soft and hard limits of 0, and a search stops after its first iteration.
+ * Agents that should search longer in untimed games, or for analysis, set an explicit budget with startBudget(softMs, hardMs).
+ * A time manager is meant for one search thread, except for stop, which any thread may call.
+ * **/
+public class TimeManager{
+
+  /**The default time held back for the runner's overhead, in milliseconds**/
+  public static final int DEFAULT_MARGIN = 50;
+  /**The default number of polls between reads of the clock**/
+  public static final int DEFAULT_CHECK_INTERVAL = 1024;
+  /**The default number of moves a player is expected to make in a game**/
+  public static final int DEFAULT_EXPECTED_MOVES = 60;
+  /**The default least number of moves the remaining time is shared between**/
+  public static final int DEFAULT_MIN_MOVES_TO_GO = 15;
+  /**The hard limit is at most this many times the soft limit**/
+  private static final double HARD_RATIO = 4.0;
+  /**The hard limit is at most this fraction of the time left**/
+  private static final double MAX_FRACTION = 0.4;
+  /**The soft limit is scaled from 1-VOLATILITY_RANGE/2 to 1+VOLATILITY_RANGE as volatility goes from 0 to 1**/
+  private static final double VOLATILITY_RANGE = 1.0;
+
+  private int margin = DEFAULT_MARGIN;
+  private int checkInterval = DEFAULT_CHECK_INTERVAL;
+  private int expectedMoves = DEFAULT_EXPECTED_MOVES;
+  private int minMovesToGo = DEFAULT_MIN_MOVES_TO_GO;
+
+  private long startTime;
+  /**The soft limit before scaling by volatility, and the limits in force, in nanoseconds**/
+  private long baseSoft, soft, hard;
+  private long softDeadline, hardDeadline;
+  private int countdown;
+  private volatile boolean stopped;
+
+  /**@param margin the time held back for the runner's overhead, in milliseconds**/
+  public void setSafetyMargin(int margin){this.margin = margin;}
+
+  /**@param checkInterval the number of calls to poll between reads of the clock**/
+  public void setCheckInterval(int checkInterval){this.checkInterval = Math.max(1, checkInterval);}
+
+  /**@param expectedMoves the number of moves a player is expected to make in a game**/
+  public void setExpectedMoves(int expectedMoves){this.expectedMoves = expectedMoves;}
+
+  /**@param minMovesToGo the least number of moves the remaining time is shared between**/
+  public void setMinMovesToGo(int minMovesToGo){this.minMovesToGo = Math.max(1, minMovesToGo);}
+
+  /**
+   * Starts timing a move, with the limits set by the clock of the player to move.
+   * Call this as early as possible in playMove.
+   * In an untimed game, whose clocks hold 1 ms, both limits are 0.
+   * @param board the board given to playMove.
+   * **/
+  public void start(Board board){
+    start(board.getTimeLeft(board.getTurn()), board.getMoveCount()/3);
+  }
+
+  /**
+   * Starts timing a move.
+   * @param timeLeft the time left on the player's clock, in milliseconds.
+   * @param movesMade the number of moves the player has made so far.
+   * **/
+  public void start(long timeLeft, int movesMade){
+    startTime = System.nanoTime();
+    stopped = false;
+    countdown = checkInterval;
+    long usable = Math.max(0, timeLeft-margin)*1_000_000L;
+    int movesToGo = Math.max(minMovesToGo, expectedMoves-movesMade);
+    baseSoft = usable/movesToGo;
+    hard = Math.min((long) (baseSoft*HARD_RATIO), (long) (usable*MAX_FRACTION));
+    hardDeadline = startTime+hard;
+    setVolatility(0.5);
+  }
+
+  /**
+   * Starts timing a move with an explicit budget, ignoring the clock and the safety margin,
+   * for example in untimed games or analysis.
+   * The soft limit is still scaled by setVolatility, but never beyond the hard limit.
+   * @param softMs the time the move should take, in milliseconds.
+   * @param hardMs the time the move must never pass, in milliseconds.
+   * **/
+  public void startBudget(long softMs, long hardMs){
+    startTime = System.nanoTime();
+    stopped = false;
+    countdown = checkInterval;
+    hard = Math.max(0, hardMs)*1_000_000L;
+    baseSoft = Math.min(hard, Math.max(0, softMs)*1_000_000L);
+    hardDeadline = startTime+hard;
+    setVolatility(0.5);
+  }
+
+  /**
+   * Scales the soft limit to how unclear the position is. The hard limit does not change.
+   * @param volatility from 0, for a settled position such as one with a single sensible move,
+   * to 1, for one where the best move keeps changing. Starts at 0.5.
+   * **/
+  public void setVolatility(double volatility){
+    volatility = Math.max(0, Math.min(1, volatility));
+    double scale = volatility<0.5? 1-VOLATILITY_RANGE*(0.5-volatility): 1+2*VOLATILITY_RANGE*(volatility-0.5);
+    soft = Math.min(hard, (long) (baseSoft*scale));
+    softDeadline = startTime+soft;
+  }
+
+  /**
+   * A cheap check for search loops: reads the clock once every check interval calls.
+   * @return whether the search should stop now: the hard deadline has passed, or stop was called.
+   * **/
+  public boolean poll(){
+    if(--countdown>0) return stopped;
+    countdown = checkInterval;
+    if(System.nanoTime()-hardDeadline>=0) stopped = true;
+    return stopped;
+  }
+
+  /**Makes poll return true until the next start, for example when another thread has found the move.**/
+  public void stop(){stopped = true;}
+
+  /**@return whether stop has been called, or poll has found the hard deadline passed**/
+  public boolean isStopped(){return stopped;}
+
+  /**@return whether the soft deadline has passed, so no new iteration should start**/
+  public boolean isSoftExpired(){return stopped || System.nanoTime()-softDeadline>=0;}
+
+  /**@return whether the hard deadline has passed, reading the clock now**/
+  public boolean isHardExpired(){return stopped || System.nanoTime()-hardDeadline>=0;}
+
+  /**@return the time since start, in milliseconds**/
+  public long elapsed(){return (System.nanoTime()-startTime)/1_000_000L;}
+
+  /**@return the soft limit for the move, in milliseconds**/
+  public long getSoftLimit(){return soft/1_000_000L;}
+
+  /**@return the hard limit for the move, in milliseconds**/
+  public long getHardLimit(){return hard/1_000_000L;}
+
+  /**@return the hard deadline, on the System.nanoTime() clock**/
+  public long getHardDeadline(){return hardDeadline;}
+}
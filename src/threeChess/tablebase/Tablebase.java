@@ -0,0 +1,258 @@
+package threeChess.tablebase;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+import threeChess.*;
+
+/**
+ * Endgame tablebases for positions with the three Kings and at most MAX_EXTRA other pieces,
+ * read from files written by TablebaseGenerator.
+ * <p>
+ * With three players there is no single game value, so a tablebase records, for each player,
+ * whether they can force a win, taking a King however both others play,
+ * and whether they are lost, the others together being able to force the capture of their King however they play.
+ * A player with neither can not be forced either way: the result depends on the play, and may be a draw.
+ * A player may also have both, when their win has to get past an opponent who could take their King instead.
+ * <p>
+ * Positions are stored in canonical form (see Symmetry), with Blue to move, so one table covers all three seats.
+ * There is one file per set of extra pieces, named by name(int[], int) and indexed by index(int[], int):
+ * <pre>
+ * int  MAGIC
+ * int  version
+ * int  number of extra pieces
+ * int  the codes of the extra pieces (see BoardCodec), one byte each, in ascending order
+ * byte the value of each position, 96^(3+number of extra pieces) of them
+ * </pre>
+ * where the value of a position has bit c set if colour c can force a win, and bit 3+c if colour c is lost.
+ * Files are memory mapped when first probed, so opening a tablebase takes no time
+ * and processes probing the same files share one copy in the page cache. A Tablebase is thread safe.
+ * **/
+public class Tablebase{
+
+  static final int MAGIC = 0x33435442;//"3CTB"
+  static final int VERSION = 1;
+  static final int HEADER = 16;
+  /**The most pieces, other than the Kings, in a tablebase**/
+  public static final int MAX_EXTRA = 2;
+  /**Returned by probe for positions not covered by any tablebase file**/
+  public static final int NOT_FOUND = -1;
+  /**The size of the mapped pages of a file**/
+  static final int PAGE = 1<<30;
+  private static final int KING = PieceType.KING.ordinal();
+  private static final String LETTERS = "PNBRQK", COLOUR_LETTERS = "BGR";
+  private static final MappedByteBuffer[] MISSING = new MappedByteBuffer[0];
+
+  private final File dir;
+  private final ConcurrentHashMap<Integer, MappedByteBuffer[]> tables = new ConcurrentHashMap<>();
+
+  /**
+   * Opens the tablebase files in a directory.
+   * @param dir the directory written to by TablebaseGenerator.
+   * **/
+  public Tablebase(File dir){
+    this.dir = dir;
+  }
+
+  /**
+   * Looks up a position.
+   * @param board the position.
+   * @return the position's value, to be read by isWin and isLoss, or NOT_FOUND.
+   * **/
+  public int probe(Board board){
+    return probe(MoveGenerator.squares(board, new byte[96]), board.getTurn());
+  }
+
+  /**
+   * Looks up a position given as an array of piece codes (see BoardCodec).
+   * @param squares the piece code on each position.
+   * @param turn the player to move.
+   * @return the position's value, to be read by isWin and isLoss, or NOT_FOUND.
+   * **/
+  public int probe(byte[] squares, Colour turn){
+    int[] codes = new int[3+MAX_EXTRA+1], positions = new int[3+MAX_EXTRA+1];
+    int count = 0;
+    for(int s = 0; s<96 && count<codes.length; s++){
+      if(squares[s]==0) continue;
+      codes[count] = squares[s];
+      positions[count++] = s;
+    }
+    int extras = canonical(codes, positions, count, turn.ordinal(), codes, positions);
+    if(extras<0) return NOT_FOUND;
+    MappedByteBuffer[] pages = table(material(codes, extras), codes, extras);
+    if(pages.length==0) return NOT_FOUND;
+    long index = index(positions, extras);
+    int value = pages[(int) (index/PAGE)].get((int) (index%PAGE));
+    return rotate(value, turn.ordinal());
+  }
+
+  /**
+   * @param value a value returned by probe, or NOT_FOUND.
+   * @param colour a colour.
+   * @return whether the colour can force a win.
+   * **/
+  public static boolean isWin(int value, Colour colour){
+    return value!=NOT_FOUND && (value>>colour.ordinal()&1)!=0;
+  }
+
+  /**
+   * @param value a value returned by probe, or NOT_FOUND.
+   * @param colour a colour.
+   * @return whether the colour's opponents can force the capture of its King.
+   * **/
+  public static boolean isLoss(int value, Colour colour){
+    return value!=NOT_FOUND && (value>>3+colour.ordinal()&1)!=0;
+  }
+
+  /**@return the mapped pages of the file for the material, or MISSING if there is none**/
+  private MappedByteBuffer[] table(int material, int[] codes, int extras){
+    MappedByteBuffer[] pages = tables.get(material);
+    if(pages==null){
+      pages = map(new File(dir, name(codes, extras)), extras);
+      MappedByteBuffer[] raced = tables.putIfAbsent(material, pages);
+      if(raced!=null) pages = raced;
+    }
+    return pages;
+  }
+
+  /**@return the mapped pages of a file, or MISSING if it does not exist or is not a tablebase**/
+  private static MappedByteBuffer[] map(File file, int extras){
+    if(!file.isFile()) return MISSING;
+    try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()){
+      long size = size(extras);
+      if(channel.size()!=HEADER+size) return MISSING;
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+      if(header.getInt(0)!=MAGIC || header.getInt(4)!=VERSION || header.getInt(8)!=extras) return MISSING;
+      MappedByteBuffer[] pages = new MappedByteBuffer[(int) ((size+PAGE-1)/PAGE)];
+      for(int i = 0; i<pages.length; i++){
+        long start = (long) i*PAGE;
+        pages[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER+start, Math.min(PAGE, size-start));
+      }
+      return pages;
+    }
+    catch(IOException e){
+      return MISSING;
+    }
+  }
+
+  /**
+   * Moves a value's bits from the canonical colours, with Blue to move, to the real colours.
+   * @param value a value in canonical colours.
+   * @param turn the colour really to move.
+   * @return the value in real colours.
+   * **/
+  static int rotate(int value, int turn){
+    int rotated = 0;
+    for(int c = 0; c<3; c++){
+      int real = (c+turn)%3;
+      rotated|=(value>>c&1)<<real | (value>>3+c&1)<<3+real;
+    }
+    return rotated;
+  }
+
+  /**
+   * Puts a list of pieces into canonical form: rotated so the player to move is Blue,
+   * with the Kings of Blue, Green and Red first, followed by the other pieces in ascending order of code.
+   * The output arrays may be the input arrays.
+   * @param codes the piece codes (see BoardCodec).
+   * @param positions the ordinals of the pieces' positions.
+   * @param count the number of pieces.
+   * @param turn the ordinal of the colour to move.
+   * @param canonicalCodes an array for the canonical codes.
+   * @param canonicalPositions an array for the canonical positions.
+   * @return the number of pieces other than Kings, or -1 if there are not three Kings and at most MAX_EXTRA others.
+   * **/
+  static int canonical(int[] codes, int[] positions, int count, int turn, int[] canonicalCodes, int[] canonicalPositions){
+    if(count<3 || count>3+MAX_EXTRA) return -1;
+    int rotation = (3-turn)%3;
+    int kingCodes = 0, extras = 0;
+    int[] kings = new int[3], extraCodes = new int[MAX_EXTRA], extraPositions = new int[MAX_EXTRA];
+    for(int i = 0; i<count; i++){
+      int colour = ((codes[i]-1)/6+rotation)%3, type = (codes[i]-1)%6;
+      int position = (positions[i]+32*rotation)%96;
+      if(type==KING){
+        if((kingCodes&1<<colour)!=0) return -1;
+        kingCodes|=1<<colour;
+        kings[colour] = position;
+      }
+      else{
+        if(extras==MAX_EXTRA) return -1;
+        int code = 1+6*colour+type, n = extras++;
+        while(n>0 && extraCodes[n-1]>code){//insertion sort by code
+          extraCodes[n] = extraCodes[n-1]; extraPositions[n] = extraPositions[n-1]; n--;
+        }
+        extraCodes[n] = code;
+        extraPositions[n] = position;
+      }
+    }
+    if(kingCodes!=7) return -1;
+    for(int c = 0; c<3; c++){
+      canonicalCodes[c] = 1+6*c+KING;
+      canonicalPositions[c] = kings[c];
+    }
+    for(int i = 0; i<extras; i++){
+      canonicalCodes[3+i] = extraCodes[i];
+      canonicalPositions[3+i] = extraPositions[i];
+    }
+    return extras;
+  }
+
+  /**
+   * @param positions the positions of the pieces in canonical form.
+   * @param extras the number of pieces other than Kings.
+   * @return the index of the position in its table.
+   * **/
+  static long index(int[] positions, int extras){
+    long index = 0;
+    for(int i = 0; i<3+extras; i++) index = index*96+positions[i];
+    return index;
+  }
+
+  /**@return the number of positions in a table with the given number of extra pieces**/
+  static long size(int extras){
+    long size = 96*96*96;
+    for(int i = 0; i<extras; i++) size*=96;
+    return size;
+  }
+
+  /**
+   * @param codes the piece codes in canonical form.
+   * @param extras the number of pieces other than Kings.
+   * @return a number identifying the set of extra pieces.
+   * **/
+  static int material(int[] codes, int extras){
+    int material = 0;
+    for(int i = 0; i<extras; i++) material|=codes[3+i]<<5*i;
+    return material;
+  }
+
+  /**
+   * @param codes the piece codes in canonical form.
+   * @param extras the number of pieces other than Kings.
+   * @return the name of the file for the set of extra pieces, such as kkk_BQ_GP.3tb
+   * for a Blue Queen and a Green pawn, with Blue to move.
+   * **/
+  public static String name(int[] codes, int extras){
+    StringBuilder name = new StringBuilder("kkk");
+    for(int i = 0; i<extras; i++){
+      int code = codes[3+i];
+      name.append('_').append(COLOUR_LETTERS.charAt((code-1)/6)).append(LETTERS.charAt((code-1)%6));
+    }
+    return name.append(".3tb").toString();
+  }
+
+  /**
+   * Parses a piece written as in file names, such as BQ for a Blue Queen.
+   * @param piece the colour letter, B, G or R, followed by the type letter, P, N, B, R or Q.
+   * @return the piece code.
+   * @throws IllegalArgumentException if the piece cannot be parsed.
+   * **/
+  public static int parse(String piece){
+    int colour = piece.length()==2? COLOUR_LETTERS.indexOf(piece.charAt(0)): -1;
+    int type = piece.length()==2? LETTERS.indexOf(piece.charAt(1)): -1;
+    if(colour<0 || type<0 || type==KING) throw new IllegalArgumentException("Not a piece: "+piece);
+    return 1+6*colour+type;
+  }
+}
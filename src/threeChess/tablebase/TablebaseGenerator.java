@@ -0,0 +1,293 @@
+package threeChess.tablebase;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import threeChess.*;
+
+/**
+ * Generates the endgame tablebase files read by Tablebase.
+ * <p>
+ * A table is computed by value iteration: every value starts empty, and each pass over the table
+ * sets the win and loss bits that the values of the positions after each move now justify,
+ * until a pass changes nothing. For the colour c to move, c can force a win if some move takes a King
+ * or leads to a position c can force a win from, and c is lost if it has moves and every move
+ * leads to a position where c is lost. For an opponent of c to move, c can force a win if every move
+ * leads to a position c can force a win from, none of them taking a King,
+ * and c is lost if some move takes c's King or leads to a position where c is lost.
+ * Bits are only ever set, so each pass can update the table in place, and passes are split across threads with fork/join.
+ * <p>
+ * Moves follow Board.move, using MoveGenerator, so a capture or a promotion leads into a table with other pieces.
+ * Those tables are generated first, or read from the directory if they are already there.
+ * <p>
+ * A table with n extra pieces takes 96^(3+n) bytes of memory: under 100MB for one extra piece,
+ * but about 8GB for two. A set of pieces is solved together with its rotations, which may depend on each other,
+ * so up to three tables are held at once: about 24GB for two extra pieces.
+ * Every table generated or read is also kept in memory until the generator is discarded,
+ * including the other two-piece tables a promotion leads into, so a pawn with one other piece needs about 48GB.
+ * **/
+public class TablebaseGenerator{
+
+  /**Positions handled by one fork/join leaf**/
+  private static final int LEAF = 1<<16;
+  private static final int PAWN = PieceType.PAWN.ordinal(), KING = PieceType.KING.ordinal(), QUEEN = PieceType.QUEEN.ordinal();
+  private static final Colour[] COLOURS = Colour.values();
+
+  private final File dir;
+  private final ForkJoinPool pool;
+  /**The tables generated or read so far, by material, in pages**/
+  private final Map<Integer, byte[][]> tables = new HashMap<>();
+  private PrintStream report;
+
+  /**
+   * Creates a generator that uses the common fork/join pool.
+   * @param dir the directory for the tablebase files.
+   * **/
+  public TablebaseGenerator(File dir){
+    this(dir, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a generator.
+   * @param dir the directory for the tablebase files.
+   * @param pool the pool to run on.
+   * **/
+  public TablebaseGenerator(File dir, ForkJoinPool pool){
+    this.dir = dir;
+    this.pool = pool;
+  }
+
+  /**@param report a stream for progress reports, or null for none**/
+  public void setReport(PrintStream report){this.report = report;}
+
+  /**
+   * Generates the table for a set of extra pieces, and every table it depends on,
+   * skipping tables whose files already exist.
+   * @param extras the codes (see BoardCodec) of the pieces other than the Kings, in the canonical position with Blue to move.
+   * @throws IOException if a file cannot be read or written.
+   * @throws IllegalArgumentException if there are more than MAX_EXTRA pieces, or any is a King.
+   * **/
+  public void generate(int... extras) throws IOException{
+    if(extras.length>Tablebase.MAX_EXTRA) throw new IllegalArgumentException("At most "+Tablebase.MAX_EXTRA+" extra pieces");
+    int[] codes = new int[3+extras.length];
+    for(int c = 0; c<3; c++) codes[c] = 1+6*c+KING;
+    for(int i = 0; i<extras.length; i++){
+      if(extras[i]<1 || extras[i]>18 || (extras[i]-1)%6==KING) throw new IllegalArgumentException("Not an extra piece: "+extras[i]);
+      codes[3+i] = extras[i];
+    }
+    Arrays.sort(codes, 3, codes.length);
+    table(codes, extras.length);
+  }
+
+  /**
+   * Makes sure the table for the material is in memory, generating it and its dependencies if needed.
+   * After a move, the colours are rotated to put the next player's position in canonical form,
+   * so a table depends on its two rotations, and the three are solved together.
+   * **/
+  private void table(int[] codes, int extras) throws IOException{
+    if(tables.containsKey(Tablebase.material(codes, extras))) return;
+    List<int[]> solving = new ArrayList<>();
+    for(int r = 0; r<3; r++){
+      int[] rotated = codes.clone();
+      for(int i = 3; i<rotated.length; i++) rotated[i] = 1+6*(((rotated[i]-1)/6+r)%3)+(rotated[i]-1)%6;
+      Arrays.sort(rotated, 3, rotated.length);
+      int material = Tablebase.material(rotated, extras);
+      if(tables.containsKey(material)) continue;//the same as an earlier rotation
+      File file = new File(dir, Tablebase.name(rotated, extras));
+      if(file.isFile()) tables.put(material, read(file, extras));
+      else{
+        tables.put(material, null);
+        solving.add(rotated);
+      }
+    }
+    for(int[] member: solving){
+      for(int i = 0; i<extras; i++){//captures of each piece, and promotions of each pawn
+        int[] fewer = new int[member.length-1];
+        for(int j = 0, k = 0; j<member.length; j++) if(j!=3+i) fewer[k++] = member[j];
+        table(fewer, extras-1);
+        if((member[3+i]-1)%6==PAWN){
+          int[] promoted = member.clone();
+          promoted[3+i]+=QUEEN-PAWN;
+          Arrays.sort(promoted, 3, promoted.length);
+          table(promoted, extras);
+        }
+      }
+    }
+    if(solving.isEmpty()) return;
+    solve(solving, extras);
+    for(int[] member: solving)
+      write(new File(dir, Tablebase.name(member, extras)), member, extras, tables.get(Tablebase.material(member, extras)));
+  }
+
+  /**Computes tables that depend on each other by value iteration.**/
+  private void solve(List<int[]> members, int extras){
+    long size = Tablebase.size(extras);
+    String names = "";
+    for(int[] member: members){
+      byte[][] table = new byte[(int) ((size+Tablebase.PAGE-1)/Tablebase.PAGE)][];
+      for(int i = 0; i<table.length; i++) table[i] = new byte[(int) Math.min(Tablebase.PAGE, size-(long) i*Tablebase.PAGE)];
+      tables.put(Tablebase.material(member, extras), table);
+      names+=(names.isEmpty()?"":", ")+Tablebase.name(member, extras);
+    }
+    long time = System.nanoTime();
+    for(int pass = 1; ; pass++){
+      LongAdder changes = new LongAdder();
+      for(int[] member: members)
+        pool.invoke(new Pass(member, extras, tables.get(Tablebase.material(member, extras)), 0, size, changes));
+      if(report!=null) report.println(names+": pass "+pass+", "+changes.sum()+" values changed");
+      if(changes.sum()==0) break;
+    }
+    if(report!=null) report.println(names+": solved in "+(System.nanoTime()-time)/1000000+"ms");
+  }
+
+  /**One pass of value iteration over a range of a table.**/
+  @SuppressWarnings("serial")
+  private final class Pass extends RecursiveAction{
+    private final int[] codes;
+    private final int extras;
+    private final byte[][] table;
+    private final long from, to;
+    private final LongAdder changes;
+
+    Pass(int[] codes, int extras, byte[][] table, long from, long to, LongAdder changes){
+      this.codes = codes; this.extras = extras; this.table = table;
+      this.from = from; this.to = to; this.changes = changes;
+    }
+
+    protected void compute(){
+      if(to-from>LEAF){
+        long mid = (from+to)>>>1;
+        invokeAll(new Pass(codes, extras, table, from, mid, changes), new Pass(codes, extras, table, mid, to, changes));
+        return;
+      }
+      int count = 3+extras;
+      byte[] squares = new byte[96];
+      int[] moves = new int[512];
+      int[] positions = new int[count];
+      int[] childCodes = new int[count], childPositions = new int[count];
+      long changed = 0;
+      for(long index = from; index<to; index++){
+        long rest = index;
+        for(int i = count-1; i>=0; i--){positions[i] = (int) (rest%96); rest/=96;}
+        if(!distinct(positions, count)) continue;
+        int old = valueAt(table, index);
+        for(int i = 0; i<count; i++) squares[positions[i]] = (byte) codes[i];
+        int n = MoveGenerator.generate(squares, COLOURS[0], moves);
+        for(int i = 0; i<count; i++) squares[positions[i]] = 0;
+        //Blue is to move: exists for Blue's win and its opponents' losses, for all for Blue's loss and its opponents' wins
+        int exists = 0, all = n>0? 0x3F: 0;
+        for(int m = 0; m<n && (exists!=0x31 || all!=0); m++){
+          int value = child(moves[m], positions, count, childCodes, childPositions);
+          exists|=value&0x31;
+          all&=value;
+        }
+        int value = old | exists&0x31 | all&0x0E;
+        if(value!=old){
+          setValue(table, index, value);
+          changed++;
+        }
+      }
+      if(changed>0) changes.add(changed);
+    }
+
+    /**
+     * @return the value of the position after Blue's move, in Blue's colours,
+     * with a King capture counted as a win for Blue and a loss for the King's owner.
+     * **/
+    private int child(int move, int[] positions, int count, int[] childCodes, int[] childPositions){
+      int start = move>>>8, end = move&0xFF;
+      int n = 0;
+      for(int i = 0; i<count; i++){
+        if(positions[i]==end){
+          if(i<3) return 1 | 1<<3+i;//takes the King of colour i
+          continue;
+        }
+        int code = codes[i], position = positions[i];
+        if(position==start){
+          position = end;
+          if((code-1)%6==PAWN && end%4==0 && end/32!=0) code+=QUEEN-PAWN;//promotion
+        }
+        childCodes[n] = code;
+        childPositions[n++] = position;
+      }
+      if(start==16 && positions[0]==start){//Blue's King from row 0, column 4
+        int column = (end%32)/4;
+        if(column==2 || column==6){//castling, so the rook moves too
+          int rookStart = column==2?0:28, rookEnd = column==2?12:20;
+          for(int i = 3; i<n; i++) if(childPositions[i]==rookStart) childPositions[i] = rookEnd;
+        }
+      }
+      int childExtras = Tablebase.canonical(childCodes, childPositions, n, 1, childCodes, childPositions);
+      byte[][] childTable = tables.get(Tablebase.material(childCodes, childExtras));
+      int value = valueAt(childTable, Tablebase.index(childPositions, childExtras));
+      return Tablebase.rotate(value, 1);//Green is to move in the child
+    }
+  }
+
+  /**@return whether no two pieces share a position**/
+  private static boolean distinct(int[] positions, int count){
+    for(int i = 1; i<count; i++)
+      for(int j = 0; j<i; j++) if(positions[i]==positions[j]) return false;
+    return true;
+  }
+
+  private static int valueAt(byte[][] table, long index){
+    return table[(int) (index/Tablebase.PAGE)][(int) (index%Tablebase.PAGE)];
+  }
+
+  private static void setValue(byte[][] table, long index, int value){
+    table[(int) (index/Tablebase.PAGE)][(int) (index%Tablebase.PAGE)] = (byte) value;
+  }
+
+  /**Reads a table written by write.**/
+  private static byte[][] read(File file, int extras) throws IOException{
+    long size = Tablebase.size(extras);
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+      if(in.readInt()!=Tablebase.MAGIC || in.readInt()!=Tablebase.VERSION || in.readInt()!=extras || file.length()!=Tablebase.HEADER+size)
+        throw new IOException("Not a tablebase with "+extras+" extra pieces: "+file);
+      in.readInt();
+      byte[][] table = new byte[(int) ((size+Tablebase.PAGE-1)/Tablebase.PAGE)][];
+      for(int i = 0; i<table.length; i++){
+        table[i] = new byte[(int) Math.min(Tablebase.PAGE, size-(long) i*Tablebase.PAGE)];
+        in.readFully(table[i]);
+      }
+      return table;
+    }
+  }
+
+  /**Writes a table, to a temporary file that is renamed once complete.**/
+  private void write(File file, int[] codes, int extras, byte[][] table) throws IOException{
+    File temp = new File(dir, file.getName()+".tmp");
+    try(OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1<<16)){
+      ByteBuffer header = ByteBuffer.allocate(Tablebase.HEADER);
+      header.putInt(Tablebase.MAGIC).putInt(Tablebase.VERSION).putInt(extras);
+      for(int i = 0; i<extras; i++) header.put((byte) codes[3+i]);
+      out.write(header.array());
+      for(byte[] page: table) out.write(page);
+    }
+    if(!temp.renameTo(file)) throw new IOException("Could not rename "+temp+" to "+file);
+    if(report!=null) report.println("Wrote "+file);
+  }
+
+  /**
+   * Generates tablebases from the command line.
+   * @param args the directory, followed by the extra pieces, each a colour letter and a type letter, such as BQ for a Blue Queen.
+   * **/
+  public static void main(String[] args) throws IOException{
+    if(args.length<1){
+      System.out.println("Usage: java threeChess.tablebase.TablebaseGenerator dir [piece ...], such as: tb BQ GP");
+      return;
+    }
+    File dir = new File(args[0]);
+    if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create "+dir);
+    int[] extras = new int[args.length-1];
+    for(int i = 1; i<args.length; i++) extras[i-1] = Tablebase.parse(args[i]);
+    TablebaseGenerator generator = new TablebaseGenerator(dir);
+    generator.setReport(System.out);
+    generator.generate(extras);
+  }
+}
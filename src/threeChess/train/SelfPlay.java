@@ -0,0 +1,272 @@
+package threeChess.train;
+
+import threeChess.*;
+import threeChess.agents.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Generates labelled training positions by running many headless games in parallel.
+ * Each worker thread has its own instances of the agents and plays untimed games with no logging or display,
+ * choosing three agents at random for each game.
+ * Positions are sampled from each game and labelled with its final result (see TrainingShard),
+ * and whole games of samples are passed through a bounded queue to a single writer thread,
+ * which appends them to numbered shard files, starting a new shard when the current one is full.
+ * If the writer falls behind, the workers wait for it.
+ * Throughput, in games and positions per second, is reported as the run progresses.
+ * **/
+public class SelfPlay{
+
+  private final List<Supplier<? extends Agent>> agents;
+  private final File directory;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private double sampleRate = 1.0;
+  private int skipPlies = 0;
+  private int maxPlies = 1000;
+  private long shardSize = 10_000_000L;
+  private int queueCapacity = 1024;
+  private PrintStream report = System.out;
+  private long reportInterval = 10_000L;
+
+  private final AtomicLong games = new AtomicLong();
+  private final AtomicLong positions = new AtomicLong();
+  private long startTime;
+
+  /**
+   * Creates a self play pipeline.
+   * @param agents suppliers of the agents to play. Each worker thread creates its own instance of each agent.
+   * @param directory the directory to write shards to.
+   * **/
+  public SelfPlay(List<Supplier<? extends Agent>> agents, File directory){
+    if(agents.isEmpty()) throw new IllegalArgumentException("Need at least one agent.");
+    this.agents = new ArrayList<>(agents);
+    this.directory = directory;
+  }
+
+  /**@param threads the number of games to play at once. Defaults to the number of processors.**/
+  public void setThreads(int threads){this.threads = threads;}
+
+  /**@param sampleRate the probability of each position being sampled. Defaults to 1.**/
+  public void setSampleRate(double sampleRate){this.sampleRate = sampleRate;}
+
+  /**@param skipPlies the number of opening moves that are never sampled. Defaults to 0.**/
+  public void setSkipPlies(int skipPlies){this.skipPlies = skipPlies;}
+
+  /**@param maxPlies the number of moves after which a game is stopped and scored as a draw. Defaults to 1000.**/
+  public void setMaxPlies(int maxPlies){this.maxPlies = maxPlies;}
+
+  /**@param shardSize the number of positions in each shard. Defaults to ten million.**/
+  public void setShardSize(long shardSize){this.shardSize = shardSize;}
+
+  /**@param queueCapacity the number of games of samples that can wait for the writer. Defaults to 1024.**/
+  public void setQueueCapacity(int queueCapacity){this.queueCapacity = queueCapacity;}
+
+  /**
+   * Sets where progress is reported.
+   * @param report the stream to report to, or null for no reports.
+   * @param interval the milliseconds between reports.
+   * **/
+  public void setReport(PrintStream report, long interval){
+    this.report = report;
+    this.reportInterval = interval;
+  }
+
+  /**
+   * Plays games until the given number have finished, writing the sampled positions to shards.
+   * @param numGames the number of games to play.
+   * @return the number of positions written.
+   * @throws IOException if a shard cannot be written.
+   * @throws InterruptedException if the thread is interrupted while waiting for the workers.
+   * **/
+  public long run(long numGames) throws IOException, InterruptedException{
+    if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create "+directory);
+    games.set(0); positions.set(0);
+    startTime = System.nanoTime();
+    BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(queueCapacity);
+    AtomicLong remaining = new AtomicLong(numGames);
+    ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "SelfPlay worker");
+      t.setDaemon(true);
+      return t;
+    });
+    List<Future<?>> tasks = new ArrayList<>();
+    for(int i = 0; i<threads; i++) tasks.add(workers.submit(() -> work(queue, remaining)));
+    workers.shutdown();
+    Writer writer = new Writer(queue);
+    Thread writerThread = new Thread(writer, "SelfPlay writer");
+    writerThread.start();
+    try{
+      for(Future<?> task: tasks) task.get();
+    }catch(ExecutionException e){
+      remaining.set(0);
+      throw new IOException("Self play worker failed", e.getCause());
+    }finally{
+      workers.shutdownNow();//after a failure, interrupts workers so none is left parked in queue.put
+      queue.put(new byte[0]);//tells the writer to finish
+      writerThread.join();
+    }
+    if(writer.error!=null) throw writer.error;
+    report();
+    return positions.get();
+  }
+
+  /**
+   * A worker's loop, playing games and queueing their samples until enough games have been claimed.
+   * **/
+  private Void work(BlockingQueue<byte[]> queue, AtomicLong remaining) throws InterruptedException{
+    Random random = new Random();
+    Agent[] players = new Agent[agents.size()];
+    for(int i = 0; i<players.length; i++) players[i] = agents.get(i).get();
+    ByteBuffer samples = ByteBuffer.allocate(64*TrainingShard.RECORD_BYTES);
+    while(remaining.getAndDecrement()>0){
+      Agent[] seats = {players[random.nextInt(players.length)], players[random.nextInt(players.length)], players[random.nextInt(players.length)]};
+      samples.clear();
+      samples = playGame(seats, random, samples);
+      games.incrementAndGet();
+      if(samples.position()>0){
+        queue.put(Arrays.copyOf(samples.array(), samples.position()));
+        positions.addAndGet(samples.position()/TrainingShard.RECORD_BYTES);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Plays one headless game, sampling positions into the buffer and filling in their results at the end.
+   * Agents are given the same callbacks, in the same order, as in ThreeChess.play.
+   * Games ending in an illegal move are not sampled.
+   * @return the buffer holding the samples, which is replaced by a larger one if it fills up.
+   * **/
+  private ByteBuffer playGame(Agent[] seats, Random random, ByteBuffer samples){
+    Board board = BoardPool.local().acquire(1);
+    Agent[] distinct = Arrays.stream(seats).distinct().toArray(Agent[]::new);
+    BoardView view = board.view();
+    for(Colour c: Colour.values()) seats[c.ordinal()].gameStarted(c, view);
+    int[] result = {0,0,0};
+    boolean legal = true;
+    for(int ply = 0; !board.gameOver() && ply<maxPlies; ply++){
+      if(ply>=skipPlies && random.nextDouble()<sampleRate){
+        if(samples.remaining()<TrainingShard.RECORD_BYTES){
+          ByteBuffer bigger = ByteBuffer.allocate(samples.capacity()*2);
+          samples.flip();
+          samples = bigger.put(samples);
+        }
+        TrainingShard.write(board, result, samples);
+      }
+      Colour mover = board.getTurn();
+      Agent current = seats[mover.ordinal()];
+      current.stopPondering();
+      Position[] move = current.playMove(board.view());
+      if(move==null || move.length!=2 || !board.isLegalMove(move[0], move[1])){legal = false; break;}
+      try{board.move(move[0], move[1], 0);}
+      catch(ImpossiblePositionException e){legal = false; break;}
+      view = board.view();
+      for(Agent agent: distinct) agent.moveMade(view, mover, move[0], move[1]);
+      if(!view.gameOver()) current.startPondering(view);
+    }
+    if(!legal){
+      Arrays.fill(result, 1);
+      result[board.getTurn().ordinal()] = -2;
+    }
+    else if(board.gameOver()){
+      result[board.getWinner().ordinal()] = 1;
+      result[board.getLoser().ordinal()] = -1;
+    }
+    ThreeChess.endGame(seats, board, result);
+    BoardPool.local().release(board);
+    if(!legal){samples.clear(); return samples;}
+    byte[] bytes = samples.array();
+    for(int at = TrainingShard.RECORD_BYTES-3; at<samples.position(); at+=TrainingShard.RECORD_BYTES)
+      for(int c = 0; c<3; c++) bytes[at+c] = (byte) result[c];
+    return samples;
+  }
+
+  /**Takes games of samples from the queue and appends them to shards, until it takes an empty array.**/
+  private class Writer implements Runnable{
+    private final BlockingQueue<byte[]> queue;
+    private IOException error;
+    private OutputStream out;
+    private int shard;
+    private long inShard;
+    private long lastReport = System.nanoTime();
+
+    Writer(BlockingQueue<byte[]> queue){
+      this.queue = queue;
+      shard = 0;
+      while(shardFile(shard).exists()) shard++;//never overwrite earlier runs
+    }
+
+    public void run(){
+      try{
+        for(byte[] games = queue.take(); games.length>0; games = queue.take()){
+          if(error!=null) continue;//keep draining so the workers can finish
+          try{write(games);}
+          catch(IOException e){error = e;}
+          if(report!=null && System.nanoTime()-lastReport>reportInterval*1_000_000L){
+            lastReport = System.nanoTime();
+            report();
+          }
+        }
+      }catch(InterruptedException e){Thread.currentThread().interrupt();}
+      try{if(out!=null) out.close();}
+      catch(IOException e){if(error==null) error = e;}
+    }
+
+    private void write(byte[] games) throws IOException{
+      int records = games.length/TrainingShard.RECORD_BYTES;
+      for(int r = 0; r<records;){
+        if(out==null || inShard==shardSize) open();
+        int n = (int) Math.min(records-r, shardSize-inShard);
+        out.write(games, r*TrainingShard.RECORD_BYTES, n*TrainingShard.RECORD_BYTES);
+        inShard+=n;
+        r+=n;
+      }
+    }
+
+    private void open() throws IOException{
+      if(out!=null) out.close();
+      out = new BufferedOutputStream(new FileOutputStream(shardFile(shard++)), 1<<20);
+      ByteBuffer header = ByteBuffer.allocate(TrainingShard.HEADER_BYTES);
+      TrainingShard.writeHeader(header);
+      out.write(header.array());
+      inShard = 0;
+    }
+  }
+
+  /**@return the file for the given shard number**/
+  private File shardFile(int shard){
+    return new File(directory, String.format("selfplay-%05d.bin", shard));
+  }
+
+  /**Prints the number of games and positions so far, and their rates.**/
+  private void report(){
+    if(report==null) return;
+    double seconds = (System.nanoTime()-startTime)/1e9;
+    report.printf("games: %d, positions: %d, games/s: %.1f, positions/s: %.1f%n",
+        games.get(), positions.get(), games.get()/seconds, positions.get()/seconds);
+  }
+
+  /**@return the number of positions sampled per second since the run started**/
+  public double getPositionsPerSecond(){
+    return positions.get()/((System.nanoTime()-startTime)/1e9);
+  }
+
+  /**
+   * Runs self play between random agents.
+   * Arguments: the directory for the shards, the number of games, and optionally the number of threads.
+   * **/
+  public static void main(String[] args) throws Exception{
+    if(args.length<2){
+      System.out.println("Usage: SelfPlay directory games [threads]");
+      return;
+    }
+    SelfPlay selfPlay = new SelfPlay(List.of(RandomAgent::new), new File(args[0]));
+    if(args.length>2) selfPlay.setThreads(Integer.parseInt(args[2]));
+    selfPlay.run(Long.parseLong(args[1]));
+  }
+}
@@ -0,0 +1,382 @@
+package threeChess.train;
+
+import threeChess.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Tunes the parameters of a linear evaluation to fit the results of games, in the style of Texel tuning.
+ * <p>
+ * Each player's evaluation is the sum, over their pieces, of the piece's value and a piece square table entry,
+ * plus a mobility weight per piece type times the number of moves of those pieces, plus a bonus for being on move.
+ * Piece square tables are indexed by the position seen from the owner's seat (see Symmetry),
+ * so one table per piece type covers all three players and all three sections of the board.
+ * A player's advantage is their evaluation less the average of their opponents',
+ * and their predicted result is tanh(K*advantage).
+ * The tuner minimises the mean squared difference between predicted and actual results (+1, -1 or 0).
+ * <p>
+ * Positions are loaded from training shards (see TrainingShard) into compact arrays of features:
+ * a short for each piece, a byte per player and piece type for mobility, and a byte for each result.
+ * The evaluation is linear in the parameters, so the error and its gradient can be computed
+ * directly from the features, split across threads with fork/join.
+ * <p>
+ * The features are held in Java arrays, so a tuner holds at most MAX_PIECES pieces over all its positions
+ * (about 45 million positions of 48 pieces) and at most MAX_POSITIONS positions.
+ * Loading more throws an IllegalStateException, keeping the positions loaded before the limit was reached.
+ * **/
+public class TexelTuner{
+
+  /**The index of the first piece value parameter, one per piece type**/
+  public static final int VALUES = 0;
+  /**The index of the first piece square table parameter, 96 per piece type**/
+  public static final int TABLES = VALUES+6;
+  /**The index of the first mobility weight, one per piece type**/
+  public static final int MOBILITY = TABLES+6*96;
+  /**The index of the bonus for being on move**/
+  public static final int TEMPO = MOBILITY+6;
+  /**The number of parameters**/
+  public static final int PARAMETERS = TEMPO+1;
+
+  /**The most pieces a tuner can hold, over all its positions**/
+  public static final int MAX_PIECES = Integer.MAX_VALUE-8;
+  /**The most positions a tuner can hold, limited by the 18 mobility features of each**/
+  public static final int MAX_POSITIONS = (Integer.MAX_VALUE-8)/18-1;
+
+  /**Positions handled by one fork/join leaf**/
+  private static final int LEAF = 1<<14;
+  private static final PieceType[] TYPES = PieceType.values();
+
+  private int size;
+  /**The pieces of every position, as colour*576 + type*96 + position seen from the owner's seat**/
+  private short[] pieces = new short[1<<20];
+  /**The start of each position's pieces, with one more entry marking the end**/
+  private int[] offsets = new int[1<<16];
+  /**The number of moves of each player's pieces of each type, 18 per position**/
+  private byte[] mobility = new byte[18<<16];
+  /**The colour to move in each position**/
+  private byte[] turns = new byte[1<<16];
+  /**The results of blue, green and red, 3 per position**/
+  private byte[] results = new byte[3<<16];
+
+  private final double[] parameters = new double[PARAMETERS];
+  private double k = 1.0;
+  private final ForkJoinPool pool;
+
+  /**Creates a tuner with no positions, starting from the standard piece values, using the common fork/join pool.**/
+  public TexelTuner(){
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a tuner with no positions, starting from the standard piece values.
+   * @param pool the pool to run on.
+   * **/
+  public TexelTuner(ForkJoinPool pool){
+    this.pool = pool;
+    for(PieceType t: TYPES) parameters[VALUES+t.ordinal()] = t.getValue();
+  }
+
+  /**
+   * Adds the positions in training shards, extracting their features in parallel.
+   * @param shards the shard files.
+   * @param limit the maximum number of positions to add in total.
+   * @throws IOException if a shard cannot be read.
+   * @throws IllegalStateException if the positions would take more than MAX_PIECES pieces or MAX_POSITIONS positions.
+   * **/
+  public void load(List<File> shards, long limit) throws IOException{
+    for(File shard: shards){
+      if(size>=limit) break;
+      ByteBuffer map = TrainingShard.map(shard);
+      int records = (int) Math.min(map.remaining()/TrainingShard.RECORD_BYTES, Math.min(limit-size, Integer.MAX_VALUE-size));
+      //features are extracted in parallel into per-chunk arrays, then appended in order
+      Chunk[] extracted = new Chunk[(records+LEAF-1)/LEAF];
+      List<RecursiveAction> tasks = new ArrayList<>();
+      for(int c = 0; c<extracted.length; c++){
+        int chunk = c;
+        tasks.add(new RecursiveAction(){
+          protected void compute(){
+            ByteBuffer buffer = map.duplicate();
+            buffer.position(map.position()+chunk*LEAF*TrainingShard.RECORD_BYTES);
+            extracted[chunk] = new Chunk(buffer, Math.min(LEAF, records-chunk*LEAF));
+          }
+        });
+      }
+      pool.invoke(new RecursiveAction(){
+        protected void compute(){invokeAll(tasks);}
+      });
+      for(Chunk chunk: extracted) append(chunk);
+    }
+  }
+
+  /**The features of a run of positions, extracted by one thread.**/
+  private static final class Chunk{
+    int n, pieceCount;
+    short[] pieces;
+    final int[] counts;
+    final byte[] mobility, turns, results;
+
+    Chunk(ByteBuffer buffer, int n){
+      this.n = n;
+      pieces = new short[n*48];
+      counts = new int[n];
+      mobility = new byte[18*n];
+      turns = new byte[n];
+      results = new byte[3*n];
+      TrainingShard.Sample sample = new TrainingShard.Sample();
+      int[] scratch = new int[128];
+      for(int i = 0; i<n; i++){
+        TrainingShard.read(buffer, sample);
+        byte[] squares = sample.squares;
+        for(int s = 0; s<96; s++){
+          int code = squares[s];
+          if(code==0) continue;
+          int colour = (code-1)/6, type = (code-1)%6;
+          int seen = (s+32*Symmetry.inverse(colour))%96;//the position seen from the owner's seat
+          if(pieceCount==pieces.length) pieces = Arrays.copyOf(pieces, pieces.length*2);
+          pieces[pieceCount++] = (short) (colour*576+type*96+seen);
+          counts[i]++;
+          int moves = mobility[18*i+colour*6+type]+MoveGenerator.mobility(squares, s, scratch);
+          mobility[18*i+colour*6+type] = (byte) Math.min(moves, 127);
+        }
+        turns[i] = (byte) sample.turn.ordinal();
+        for(int c = 0; c<3; c++) results[3*i+c] = (byte) sample.result[c];
+      }
+    }
+  }
+
+  private void append(Chunk chunk){
+    int pieceStart = offsets[size];
+    ensure((long) size+chunk.n, (long) pieceStart+chunk.pieceCount);
+    System.arraycopy(chunk.pieces, 0, pieces, pieceStart, chunk.pieceCount);
+    System.arraycopy(chunk.mobility, 0, mobility, 18*size, 18*chunk.n);
+    System.arraycopy(chunk.turns, 0, turns, size, chunk.n);
+    System.arraycopy(chunk.results, 0, results, 3*size, 3*chunk.n);
+    for(int i = 0; i<chunk.n; i++) offsets[size+i+1] = offsets[size+i]+chunk.counts[i];
+    size+=chunk.n;
+  }
+
+  /**
+   * Grows the arrays to hold the given number of positions and pieces.
+   * @throws IllegalStateException if either is more than the arrays can hold.
+   * **/
+  private void ensure(long positions, long pieceCount){
+    if(pieceCount>MAX_PIECES)
+      throw new IllegalStateException("Too many pieces to tune: "+pieceCount+" over "+positions+" positions, the most is "+MAX_PIECES+".");
+    if(positions>MAX_POSITIONS)
+      throw new IllegalStateException("Too many positions to tune: "+positions+", the most is "+MAX_POSITIONS+".");
+    if(pieceCount>pieces.length)
+      pieces = Arrays.copyOf(pieces, (int) Math.max(pieceCount, Math.min(pieces.length+(long) (pieces.length>>1), MAX_PIECES)));
+    if(positions+1>offsets.length){
+      int capacity = (int) Math.max(positions+1, Math.min(offsets.length+(long) (offsets.length>>1), MAX_POSITIONS+1L));
+      offsets = Arrays.copyOf(offsets, capacity);
+      mobility = Arrays.copyOf(mobility, 18*capacity);
+      turns = Arrays.copyOf(turns, capacity);
+      results = Arrays.copyOf(results, 3*capacity);
+    }
+  }
+
+  /**
+   * Computes the error, and optionally its gradient, over a range of positions.
+   * The result is the sum of squared errors, followed by the gradient if requested.
+   * **/
+  @SuppressWarnings("serial")
+  private final class Pass extends RecursiveTask<double[]>{
+    private final int from, to;
+    private final double[] params;
+    private final double scale;
+    private final boolean gradient;
+
+    Pass(int from, int to, double[] params, double scale, boolean gradient){
+      this.from = from; this.to = to; this.params = params; this.scale = scale; this.gradient = gradient;
+    }
+
+    protected double[] compute(){
+      if(to-from>LEAF){
+        int mid = (from+to)>>>1;
+        Pass left = new Pass(from, mid, params, scale, gradient);
+        left.fork();
+        double[] right = new Pass(mid, to, params, scale, gradient).compute();
+        double[] sum = left.join();
+        for(int i = 0; i<sum.length; i++) sum[i]+=right[i];
+        return sum;
+      }
+      double[] out = new double[gradient?1+PARAMETERS:1];
+      double[] eval = new double[3], dEval = new double[3];
+      for(int p = from; p<to; p++){
+        evaluate(p, params, eval);
+        double mean = eval[0]+eval[1]+eval[2];
+        for(int c = 0; c<3; c++){
+          double advantage = eval[c]-(mean-eval[c])/2;
+          double predicted = Math.tanh(scale*advantage);
+          double diff = predicted-results[3*p+c];
+          out[0]+=diff*diff;
+          //the derivative of the squared error with respect to the advantage, spread over the evaluations
+          double d = 2*diff*scale*(1-predicted*predicted);
+          dEval[c] = d;
+        }
+        if(!gradient) continue;
+        for(int c = 0; c<3; c++) eval[c] = dEval[c]-(dEval[(c+1)%3]+dEval[(c+2)%3])/2;
+        addGradient(p, eval, out);
+      }
+      return out;
+    }
+  }
+
+  /**Adds a player's evaluation in a position to eval, by colour.**/
+  private void evaluate(int p, double[] params, double[] eval){
+    eval[0] = eval[1] = eval[2] = 0;
+    for(int i = offsets[p]; i<offsets[p+1]; i++){
+      int f = pieces[i];
+      int colour = f/576, type = (f%576)/96;
+      eval[colour]+=params[VALUES+type]+params[TABLES+f%576];
+    }
+    for(int c = 0; c<3; c++)
+      for(int t = 0; t<6; t++) eval[c]+=params[MOBILITY+t]*mobility[18*p+c*6+t];
+    eval[turns[p]]+=params[TEMPO];
+  }
+
+  /**
+   * Adds the features of each player in a position, times the derivative of the error with respect to their evaluation,
+   * to the gradient, which starts at index 1.
+   * **/
+  private void addGradient(int p, double[] g, double[] out){
+    for(int i = offsets[p]; i<offsets[p+1]; i++){
+      int f = pieces[i];
+      double d = g[f/576];
+      out[1+VALUES+(f%576)/96]+=d;
+      out[1+TABLES+f%576]+=d;
+    }
+    for(int c = 0; c<3; c++)
+      for(int t = 0; t<6; t++) out[1+MOBILITY+t]+=g[c]*mobility[18*p+c*6+t];
+    out[1+TEMPO]+=g[turns[p]];
+  }
+
+  /**
+   * @param params the parameters to evaluate with.
+   * @param scale the scaling constant K.
+   * @return the mean squared error of the predicted results.
+   * **/
+  public double error(double[] params, double scale){
+    if(size==0) return 0;
+    return pool.invoke(new Pass(0, size, params, scale, false))[0]/(3.0*size);
+  }
+
+  /**@return the mean squared error of the current parameters**/
+  public double error(){return error(parameters, k);}
+
+  /**
+   * Finds the scaling constant K that minimises the error of the current parameters, by golden section search.
+   * Tune K before the parameters, and keep it fixed while they are tuned.
+   * @return the constant found.
+   * **/
+  public double fitScale(){
+    double lo = 0.001, hi = 10, phi = (Math.sqrt(5)-1)/2;
+    double a = hi-phi*(hi-lo), b = lo+phi*(hi-lo);
+    double ea = error(parameters, a), eb = error(parameters, b);
+    for(int i = 0; i<40; i++){
+      if(ea<eb){hi = b; b = a; eb = ea; a = hi-phi*(hi-lo); ea = error(parameters, a);}
+      else{lo = a; a = b; ea = eb; b = lo+phi*(hi-lo); eb = error(parameters, b);}
+    }
+    k = (lo+hi)/2;
+    return k;
+  }
+
+  /**
+   * Tunes the parameters by gradient descent with Adam step sizes.
+   * @param iterations the number of passes over the positions.
+   * @param rate the largest change to a parameter in one pass, in pawns.
+   * @param report a stream to print the error to after each pass, or null.
+   * @return the final mean squared error.
+   * **/
+  public double tune(int iterations, double rate, PrintStream report){
+    double[] m = new double[PARAMETERS], v = new double[PARAMETERS];
+    double beta1 = 0.9, beta2 = 0.999;
+    for(int it = 1; it<=iterations && size>0; it++){
+      long start = System.nanoTime();
+      double[] pass = pool.invoke(new Pass(0, size, parameters, k, true));
+      for(int i = 0; i<PARAMETERS; i++){
+        double g = pass[1+i]/(3.0*size);
+        m[i] = beta1*m[i]+(1-beta1)*g;
+        v[i] = beta2*v[i]+(1-beta2)*g*g;
+        double mHat = m[i]/(1-Math.pow(beta1, it)), vHat = v[i]/(1-Math.pow(beta2, it));
+        parameters[i]-=rate*mHat/(Math.sqrt(vHat)+1e-8);
+      }
+      if(report!=null)
+        report.printf("pass %d: error %.6f (%d positions, %.2fs)%n", it, pass[0]/(3.0*size), size, (System.nanoTime()-start)/1e9);
+    }
+    return error();
+  }
+
+  /**@return the number of positions loaded**/
+  public int size(){return size;}
+
+  /**@return the scaling constant K**/
+  public double getScale(){return k;}
+
+  /**@param k the scaling constant K**/
+  public void setScale(double k){this.k = k;}
+
+  /**@return the parameters, indexed from VALUES, TABLES, MOBILITY and TEMPO. Changes to the array change the tuner's parameters.**/
+  public double[] getParameters(){return parameters;}
+
+  /**
+   * @param type a piece type.
+   * @param position a position, seen from the seat of the piece's owner, as if they were Blue.
+   * @return the index of the piece square table parameter.
+   * **/
+  public static int table(PieceType type, Position position){
+    return TABLES+type.ordinal()*96+position.ordinal();
+  }
+
+  /**
+   * Prints the parameters: piece values, mobility weights and the tempo bonus,
+   * then each piece square table as a Blue piece would see it, one section per block of rows.
+   * @param out the stream to print to.
+   * **/
+  public void print(PrintStream out){
+    out.printf("K %.5f%n", k);
+    for(PieceType t: TYPES) out.printf("value %s %.3f%n", t, parameters[VALUES+t.ordinal()]);
+    for(PieceType t: TYPES) out.printf("mobility %s %.4f%n", t, parameters[MOBILITY+t.ordinal()]);
+    out.printf("tempo %.4f%n", parameters[TEMPO]);
+    for(PieceType t: TYPES){
+      out.println("table "+t);
+      for(Colour section: Colour.values()){
+        for(int row = 3; row>=0; row--){
+          StringBuilder line = new StringBuilder(section.toString().charAt(0)+""+(row+1));
+          for(int col = 0; col<8; col++)
+            line.append(String.format(" %6.3f", parameters[TABLES+t.ordinal()*96+32*section.ordinal()+row+4*col]));
+          out.println(line);
+        }
+      }
+    }
+  }
+
+  /**
+   * Tunes an evaluation from training shards.
+   * Arguments: the number of passes, then the shard files or directories of shards.
+   * **/
+  public static void main(String[] args) throws IOException{
+    if(args.length<2){
+      System.out.println("Usage: TexelTuner passes shard|directory...");
+      return;
+    }
+    List<File> shards = new ArrayList<>();
+    for(int i = 1; i<args.length; i++){
+      File f = new File(args[i]);
+      File[] files = f.isDirectory()? f.listFiles((dir, name) -> name.endsWith(".bin")): new File[]{f};
+      if(files!=null){Arrays.sort(files); shards.addAll(Arrays.asList(files));}
+    }
+    TexelTuner tuner = new TexelTuner();
+    long start = System.nanoTime();
+    tuner.load(shards, Long.MAX_VALUE);
+    System.out.printf("loaded %d positions in %.1fs%n", tuner.size(), (System.nanoTime()-start)/1e9);
+    System.out.printf("K = %.5f, error %.6f%n", tuner.fitScale(), tuner.error());
+    tuner.tune(Integer.parseInt(args[0]), 0.05, System.out);
+    tuner.print(System.out);
+  }
+}
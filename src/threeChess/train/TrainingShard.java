@@ -0,0 +1,122 @@
+package threeChess.train;
+
+import threeChess.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The file format for labelled training positions.
+ * A shard is a header (the magic number 0x33435450 and a version, as ints) followed by fixed size records,
+ * so shards can be mapped, split and sampled at random without parsing.
+ * Each record is 100 bytes: the piece code (see BoardCodec) on each of the 96 squares,
+ * the colour to move, and the final result of blue, green and red as signed bytes (+1 win, -1 loss, 0 otherwise).
+ * **/
+public final class TrainingShard{
+
+  /**Marks a training shard**/
+  public static final int MAGIC = 0x33435450;
+  /**The version of the record layout**/
+  public static final int VERSION = 1;
+  /**The size of the header in bytes**/
+  public static final int HEADER_BYTES = 8;
+  /**The size of each record in bytes**/
+  public static final int RECORD_BYTES = 100;
+
+  private TrainingShard(){}
+
+  /**A labelled position read from a shard.**/
+  public static final class Sample{
+    /**The piece code on each square, indexed by position ordinal**/
+    public final byte[] squares = new byte[96];
+    /**The colour to move**/
+    public Colour turn;
+    /**The results of blue, green and red**/
+    public final int[] result = new int[3];
+
+    /**@return the piece on the position, or null if it is empty**/
+    public Piece getPiece(Position position){return BoardCodec.piece(squares[position.ordinal()]);}
+  }
+
+  /**
+   * Writes the header of a shard.
+   * @param buffer the buffer to write to.
+   * **/
+  public static void writeHeader(ByteBuffer buffer){
+    buffer.putInt(MAGIC).putInt(VERSION);
+  }
+
+  /**
+   * Writes a record for a position.
+   * @param board the position.
+   * @param result the final scores of blue, green and red.
+   * @param buffer the buffer to write to, which must have RECORD_BYTES remaining.
+   * **/
+  public static void write(Board board, int[] result, ByteBuffer buffer){
+    for(Position p: Position.values()) buffer.put((byte) BoardCodec.code(board.getPiece(p)));
+    buffer.put((byte) board.getTurn().ordinal());
+    for(int c = 0; c<3; c++) buffer.put((byte) result[c]);
+  }
+
+  /**
+   * Reads a record.
+   * @param buffer the buffer positioned at the record.
+   * @param sample the sample to read into.
+   * @return the sample.
+   * **/
+  public static Sample read(ByteBuffer buffer, Sample sample){
+    buffer.get(sample.squares);
+    sample.turn = Colour.values()[buffer.get()];
+    for(int c = 0; c<3; c++) sample.result[c] = buffer.get();
+    return sample;
+  }
+
+  /**
+   * Maps a shard and checks its header.
+   * @param file the shard.
+   * @return a read-only buffer positioned at the first record, limited to whole records.
+   * @throws IOException if the file cannot be read or is not a shard.
+   * **/
+  public static ByteBuffer map(File file) throws IOException{
+    try(FileChannel channel = FileChannel.open(file.toPath())){
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if(map.remaining()<HEADER_BYTES || map.getInt()!=MAGIC) throw new IOException(file+" is not a training shard.");
+      int version = map.getInt();
+      if(version!=VERSION) throw new IOException("Unsupported shard version "+version+".");
+      map.limit(HEADER_BYTES+(map.remaining()/RECORD_BYTES)*RECORD_BYTES);//ignore a partly written record
+      return map;
+    }
+  }
+
+  /**
+   * Iterates over the samples in a shard.
+   * The same Sample object is returned each time, so copy anything that must be kept.
+   * @param file the shard.
+   * @return the samples.
+   * @throws IOException if the file cannot be read or is not a shard.
+   * **/
+  public static Iterable<Sample> samples(File file) throws IOException{
+    ByteBuffer map = map(file);
+    return () -> new Iterator<Sample>(){
+      private final ByteBuffer buffer = map.duplicate();
+      private final Sample sample = new Sample();
+      public boolean hasNext(){return buffer.remaining()>=RECORD_BYTES;}
+      public Sample next(){
+        if(!hasNext()) throw new NoSuchElementException();
+        return read(buffer, sample);
+      }
+    };
+  }
+
+  /**
+   * @param file a shard.
+   * @return the number of records in the shard.
+   * **/
+  public static long count(File file){
+    return Math.max(0, (file.length()-HEADER_BYTES)/RECORD_BYTES);
+  }
+}